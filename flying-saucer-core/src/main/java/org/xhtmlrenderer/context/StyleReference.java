@@ -21,6 +21,7 @@ package org.xhtmlrenderer.context;
 
 import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -31,6 +32,7 @@ import org.xhtmlrenderer.css.constants.CSSName;
 import org.xhtmlrenderer.css.extend.AttributeResolver;
 import org.xhtmlrenderer.css.extend.lib.DOMTreeResolver;
 import org.xhtmlrenderer.css.newmatch.CascadedStyle;
+import org.xhtmlrenderer.css.newmatch.CompiledStylesheets;
 import org.xhtmlrenderer.css.newmatch.PageInfo;
 import org.xhtmlrenderer.css.parser.PropertyValue;
 import org.xhtmlrenderer.css.sheet.FontFaceRule;
@@ -65,6 +67,8 @@ public class StyleReference {
 
     /** */
     private UserAgentCallback _uac;
+
+    private List<Stylesheet> _stylesheets;
     
     public StyleReference(final UserAgentCallback userAgent) {
         _uac = userAgent;
@@ -82,12 +86,20 @@ public class StyleReference {
 
         final List<StylesheetInfo> infos = getStylesheets();
         XRLog.match("media = " + _context.getMedia());
+        _stylesheets = readAndParseAll(infos, _context.getMedia());
         _matcher = new org.xhtmlrenderer.css.newmatch.Matcher(
                 new DOMTreeResolver(), 
                 attRes, 
                 _stylesheetFactory, 
-                readAndParseAll(infos, _context.getMedia()), 
-                _context.getMedia());
+                CompiledStylesheets.getInstance(_stylesheets, _context.getMedia()));
+    }
+
+    /**
+     * @return the stylesheets that apply to the current document and medium,
+     *         imported ones included, in cascade order
+     */
+    public List<Stylesheet> getParsedStylesheets() {
+        return _stylesheets == null ? Collections.<Stylesheet>emptyList() : Collections.unmodifiableList(_stylesheets);
     }
     
     private List<Stylesheet> readAndParseAll(final List<StylesheetInfo> infos, final String medium) {
@@ -111,6 +123,22 @@ public class StyleReference {
         return result;
     }
     
+    /**
+     * @return the number of matched selector chains checked against the
+     * descendants of the matched element, see {@link #getDescendantFilterRejects()}
+     */
+    public long getDescendantFilterTests() {
+        return _matcher == null ? 0 : _matcher.getDescendantFilterTests();
+    }
+
+    /**
+     * @return the number of matched selector chains that were not carried
+     * forward because nothing below the matched element could match them
+     */
+    public long getDescendantFilterRejects() {
+        return _matcher == null ? 0 : _matcher.getDescendantFilterRejects();
+    }
+
     public boolean isHoverStyled(final Element e) {
         return _matcher.isHoverStyled(e);
     }
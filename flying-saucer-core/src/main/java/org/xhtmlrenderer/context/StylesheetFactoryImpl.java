@@ -35,6 +35,9 @@ import org.xhtmlrenderer.css.sheet.StylesheetInfo;
 import org.xhtmlrenderer.css.sheet.StylesheetInfo.CSSOrigin;
 import org.xhtmlrenderer.extend.UserAgentCallback;
 import org.xhtmlrenderer.resource.CSSResource;
+import org.xhtmlrenderer.swing.StylesheetCache;
+import org.xhtmlrenderer.util.Configuration;
+import org.xhtmlrenderer.util.ConcurrentLruCache;
 import org.xhtmlrenderer.util.XRLog;
 
 /**
@@ -52,6 +55,10 @@ public class StylesheetFactoryImpl implements StylesheetFactory {
     private UserAgentCallback _userAgentCallback;
     private final CSSParser _cssParser;
 
+    private static final ConcurrentLruCache<DeclarationKey, Ruleset> _declarationCache =
+            new ConcurrentLruCache<DeclarationKey, Ruleset>(
+                    Configuration.valueAsInt("xr.cache.style-declarations", 4096));
+
     public StylesheetFactoryImpl(final UserAgentCallback userAgentCallback) {
         _userAgentCallback = userAgentCallback;
         _cssParser = new CSSParser(new CSSErrorHandler() {
@@ -61,10 +68,18 @@ public class StylesheetFactoryImpl implements StylesheetFactory {
         });
     }
 
-    public synchronized Stylesheet parse(final Reader reader, final StylesheetInfo info) {
+    public Stylesheet parse(final Reader reader, final StylesheetInfo info) {
+        return parse(reader, info, null);
+    }
+
+    private synchronized Stylesheet parse(final Reader reader, final StylesheetInfo info, final String validator) {
         try {
         	final Stylesheet s1 = _cssParser.parseStylesheet(info.getUri(), info.getOrigin(), reader);
-        	_userAgentCallback.getStylesheetCache().putStylesheet(info.getUri(), s1);
+        	// Inline sheets are never looked up again, so caching them would
+        	// only push external sheets out of the shared cache
+        	if (! info.isInline()) {
+        		_userAgentCallback.getStylesheetCache().putStylesheet(info.getUri(), s1, validator);
+        	}
             return s1; 
         } catch (final IOException e) {
             XRLog.cssParse(Level.WARNING, "Couldn't parse stylesheet at URI " + info.getUri() + ": " + e.getMessage(), e);
@@ -76,13 +91,13 @@ public class StylesheetFactoryImpl implements StylesheetFactory {
     /**
      * @return Returns null if uri could not be loaded
      */
-    private Stylesheet parse(final StylesheetInfo info) {
+    private Stylesheet parse(final StylesheetInfo info, final String validator) {
         final CSSResource cr = _userAgentCallback.getCSSResource(info.getUri());
         // Whether by accident or design, InputStream will never be null
         // since the null resource stream is wrapped in a BufferedInputStream
         final InputStream is = cr.getResourceInputStream();
         try {
-            final Stylesheet s1 = parse(new InputStreamReader(is, "UTF-8"), info);
+            final Stylesheet s1 = parse(new InputStreamReader(is, "UTF-8"), info, validator);
             return s1;
         } catch (final UnsupportedEncodingException e) {
             // Shouldn't happen
@@ -98,20 +113,46 @@ public class StylesheetFactoryImpl implements StylesheetFactory {
         }
     }
 
-    public synchronized Ruleset parseStyleDeclaration(final CSSOrigin origin, final String styleDeclaration) {
-        return _cssParser.parseDeclaration(origin, styleDeclaration);
+    /**
+     * Parses the contents of a style attribute. Parsed declarations are
+     * shared by all documents through {@link #getStyleDeclarationCache()}, so
+     * a given declaration text is only parsed once. The returned Ruleset must
+     * not be modified.
+     */
+    public Ruleset parseStyleDeclaration(final CSSOrigin origin, final String styleDeclaration) {
+        final DeclarationKey key = new DeclarationKey(origin, _cssParser.isSupportCMYKColors(), styleDeclaration);
+        final Ruleset cached = _declarationCache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        final Ruleset result;
+        synchronized (this) {
+            result = _cssParser.parseDeclaration(origin, styleDeclaration);
+        }
+        return _declarationCache.putIfAbsent(key, result);
+    }
+
+    /**
+     * @return the process wide cache of parsed style attributes, e.g. to read
+     * its hit and miss counts
+     */
+    public static ConcurrentLruCache<?, Ruleset> getStyleDeclarationCache() {
+        return _declarationCache;
     }
 
     public Stylesheet getStylesheet(final StylesheetInfo info) 
     {
-        XRLog.load("Requesting stylesheet: " + info.getUri());
-        
         // Give the user agent the chance to return a cached Stylesheet
-        // instance.
-        final Stylesheet s1 = _userAgentCallback.getStylesheetCache().getStylesheet(info);
+        // instance, as long as it is still valid.
+        final String validator = _userAgentCallback instanceof StylesheetCache.Validator ?
+                ((StylesheetCache.Validator) _userAgentCallback).getValidator(info.getUri()) : null;
+        final Stylesheet s1 = _userAgentCallback.getStylesheetCache().getStylesheet(info, validator);
 
-        if (s1 == null)
-        	return parse(info);
+        if (s1 == null) {
+            XRLog.load("Loading stylesheet: " + info.getUri());
+        	return parse(info, validator);
+        }
 
         return s1;
     }
@@ -128,4 +169,32 @@ public class StylesheetFactoryImpl implements StylesheetFactory {
     public void setSupportCMYKColors(final boolean b) {
         _cssParser.setSupportCMYKColors(b);
     }
+
+    /**
+     * The parse result depends on the declaration text, its origin and
+     * whether CMYK colors are enabled for the parser.
+     */
+    private static final class DeclarationKey {
+        private final CSSOrigin _origin;
+        private final boolean _cmyk;
+        private final String _text;
+
+        private DeclarationKey(final CSSOrigin origin, final boolean cmyk, final String text) {
+            _origin = origin;
+            _cmyk = cmyk;
+            _text = text;
+        }
+
+        public boolean equals(final Object o) {
+            if (! (o instanceof DeclarationKey)) {
+                return false;
+            }
+            final DeclarationKey other = (DeclarationKey) o;
+            return _origin == other._origin && _cmyk == other._cmyk && _text.equals(other._text);
+        }
+
+        public int hashCode() {
+            return (_text.hashCode() * 31 + _origin.hashCode()) * 2 + (_cmyk ? 1 : 0);
+        }
+    }
 }
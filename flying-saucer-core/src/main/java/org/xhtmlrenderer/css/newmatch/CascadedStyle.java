@@ -19,13 +19,12 @@
  */
 package org.xhtmlrenderer.css.newmatch;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.xhtmlrenderer.css.constants.CSSName;
 import org.xhtmlrenderer.css.constants.IdentValue;
@@ -56,24 +55,52 @@ import org.xhtmlrenderer.css.sheet.StylesheetInfo;
  * @author Patrick Wright
  */
 public class CascadedStyle {
+    private static final int NAME_COUNT = CSSName.countCSSNames();
+
+    private static final PropertyDeclaration[] NO_DECLARATIONS = new PropertyDeclaration[0];
+
     /**
-     * Map of PropertyDeclarations, keyed by {@link CSSName}
+     * The cascaded PropertyDeclarations, one per property, in
+     * {@link CSSName#FS_ID} order
      */
-    private final Map<CSSName, PropertyDeclaration> cascadedProperties;
-    
+    private final PropertyDeclaration[] _declarations;
+
+    /**
+     * 64 bit hash over the identity of the cascaded declarations, see
+     * {@link #getIdentityKey()}
+     */
+    private final long _identityKey;
+
     private String fingerprint;
+
+    /**
+     * Anonymous styles and layout declarations are interned, so that styles
+     * built from them compare equal and can share derived styles.
+     */
+    private static final ConcurrentMap<IdentValue, CascadedStyle> _anonymousStyles =
+            new ConcurrentHashMap<IdentValue, CascadedStyle>();
+    private static final ConcurrentMap<Long, PropertyDeclaration> _layoutDeclarations =
+            new ConcurrentHashMap<Long, PropertyDeclaration>();
     
     /**
      * Creates a <code>CascadedStyle</code>, setting the display property to
      * to the value of the <code>display</code> parameter.  
      */
     public static CascadedStyle createAnonymousStyle(final IdentValue display) {
-        final PropertyValue val = new PropertyValueImp(display);
-        
-        final List<PropertyDeclaration> props = Collections.singletonList(
-                new PropertyDeclaration(CSSName.DISPLAY, val, true, StylesheetInfo.CSSOrigin.USER));
-        
-        return new CascadedStyle(props.iterator());
+        CascadedStyle result = _anonymousStyles.get(display);
+        if (result == null) {
+            final PropertyValue val = new PropertyValueImp(display);
+
+            final List<PropertyDeclaration> props = Collections.singletonList(
+                    new PropertyDeclaration(CSSName.DISPLAY, val, true, StylesheetInfo.CSSOrigin.USER));
+
+            result = new CascadedStyle(props.iterator());
+            final CascadedStyle existing = _anonymousStyles.putIfAbsent(display, result);
+            if (existing != null) {
+                result = existing;
+            }
+        }
+        return result;
     }
     
     /**
@@ -112,9 +139,18 @@ public class CascadedStyle {
      */
     public static PropertyDeclaration createLayoutPropertyDeclaration(
             final CSSName cssName, final IdentValue display) {
-        final PropertyValue val = new PropertyValueImp(display);
-        // Urk... kind of ugly, but we really want this value to be used
-        return new PropertyDeclaration(cssName, val, true, StylesheetInfo.CSSOrigin.USER);
+        final Long key = Long.valueOf(((long) cssName.FS_ID << 32) | display.ordinal());
+        PropertyDeclaration result = _layoutDeclarations.get(key);
+        if (result == null) {
+            final PropertyValue val = new PropertyValueImp(display);
+            // Urk... kind of ugly, but we really want this value to be used
+            result = new PropertyDeclaration(cssName, val, true, StylesheetInfo.CSSOrigin.USER);
+            final PropertyDeclaration existing = _layoutDeclarations.putIfAbsent(key, result);
+            if (existing != null) {
+                result = existing;
+            }
+        }
+        return result;
     }
 
     /**
@@ -130,40 +166,101 @@ public class CascadedStyle {
      *             specificity.
      */
     CascadedStyle(final java.util.Iterator<PropertyDeclaration> iter) {
-        this();
+        this(null, null, iter);
+    }
 
-        addProperties(iter);
+    private CascadedStyle(final CascadedStyle startingPoint, final Iterator<PropertyDeclaration> props) {
+        this(override(startingPoint, props));
+    }
+
+    private CascadedStyle(final PropertyDeclaration[] declarations) {
+        _declarations = declarations;
+        _identityKey = computeIdentityKey(declarations);
+    }
+
+    /**
+     * Constructs a new CascadedStyle as if the declarations of
+     * <code>under</code>, then those that were cascaded into
+     * <code>base</code>, then those of <code>over</code> had been given in
+     * that order of specificity. Any of the three may be null.
+     * <p/>
+     * This lets a cascade that is shared by many elements be reused for an
+     * element that adds its own presentational hints (which come before all
+     * matched rules) or style attribute (which comes after them).
+     */
+    CascadedStyle(final Iterator<PropertyDeclaration> under, final CascadedStyle base,
+            final Iterator<PropertyDeclaration> over) {
+        this(cascade(under, base, over));
+    }
+
+    private static PropertyDeclaration[] cascade(final Iterator<PropertyDeclaration> under,
+            final CascadedStyle base, final Iterator<PropertyDeclaration> over) {
+        final PropertyDeclaration[] slots = new PropertyDeclaration[NAME_COUNT];
+        if (under != null) {
+            cascade(slots, under);
+        }
+        if (base != null) {
+            cascade(slots, Arrays.asList(base._declarations).iterator());
+        }
+        if (over != null) {
+            cascade(slots, over);
+        }
+        return compact(slots);
     }
 
-    private void addProperties(final java.util.Iterator<PropertyDeclaration> iter) {
-        //do a bucket-sort on importance and origin
-        //properties should already be in order of specificity
-        @SuppressWarnings("unchecked")
-        final
-		java.util.List<PropertyDeclaration>[] buckets = new java.util.List[PropertyDeclaration.IMPORTANCE_AND_ORIGIN_COUNT];
-        for (int i = 0; i < buckets.length; i++) {
-            buckets[i] = new java.util.LinkedList<PropertyDeclaration>();
+    /**
+     * The declarations of <code>startingPoint</code>, with those cascaded
+     * from <code>props</code> replacing them whatever their importance.
+     */
+    private static PropertyDeclaration[] override(
+            final CascadedStyle startingPoint, final Iterator<PropertyDeclaration> props) {
+        final PropertyDeclaration[] slots = new PropertyDeclaration[NAME_COUNT];
+        cascade(slots, props);
+        for (final PropertyDeclaration prop : startingPoint._declarations) {
+            final int id = prop.getCSSName().FS_ID;
+            if (slots[id] == null) {
+                slots[id] = prop;
+            }
         }
+        return compact(slots);
+    }
 
+    /**
+     * Puts each declaration in the slot of its property, unless the slot
+     * holds a declaration of higher importance or origin. The declarations
+     * are in order of specificity, so a later one of the same importance and
+     * origin wins.
+     */
+    private static void cascade(final PropertyDeclaration[] slots, final Iterator<PropertyDeclaration> iter) {
         while (iter.hasNext()) {
             final PropertyDeclaration prop = iter.next();
-            buckets[prop.getImportanceAndOrigin()].add(prop);
+            final int id = prop.getCSSName().FS_ID;
+            final PropertyDeclaration current = slots[id];
+            if (current == null || current.getImportanceAndOrigin() <= prop.getImportanceAndOrigin()) {
+                slots[id] = prop;
+            }
         }
+    }
 
-        for (final List<PropertyDeclaration> bucket : buckets) {
-            for (final java.util.Iterator<PropertyDeclaration> it = bucket.iterator(); it.hasNext();) {
-                final PropertyDeclaration prop = (PropertyDeclaration) it.next();
-                cascadedProperties.put(prop.getCSSName(), prop);
+    private static PropertyDeclaration[] compact(final PropertyDeclaration[] slots) {
+        int count = 0;
+        for (final PropertyDeclaration slot : slots) {
+            if (slot != null) {
+                count++;
             }
         }
+        if (count == 0) {
+            return NO_DECLARATIONS;
+        }
+        final PropertyDeclaration[] result = new PropertyDeclaration[count];
+        int pos = 0;
+        for (final PropertyDeclaration slot : slots) {
+            if (slot != null) {
+                result[pos++] = slot;
+            }
+        }
+        return result;
     }
-    
-    private CascadedStyle(final CascadedStyle startingPoint, final Iterator<PropertyDeclaration> props) {
-        cascadedProperties = new TreeMap<CSSName, PropertyDeclaration>(startingPoint.cascadedProperties);
-        
-        addProperties(props);
-    }
-
 
     /**
      * Default constructor with no initialization. Don't use this to instantiate
@@ -171,7 +268,7 @@ public class CascadedStyle {
      * properties.
      */
     private CascadedStyle() {
-        cascadedProperties = new TreeMap<CSSName, PropertyDeclaration>();
+        this(NO_DECLARATIONS);
     }
 
     /**
@@ -187,7 +284,7 @@ public class CascadedStyle {
      * @return True if the property is defined in this set.
      */
     public boolean hasProperty(final CSSName cssName) {
-        return cascadedProperties.get( cssName ) != null;
+        return propertyByName(cssName) != null;
     }
 
 
@@ -202,9 +299,21 @@ public class CascadedStyle {
      *         if not found.
      */
     public PropertyDeclaration propertyByName(final CSSName cssName) {
-        final PropertyDeclaration prop = cascadedProperties.get(cssName);
-
-        return prop;
+        final int id = cssName.FS_ID;
+        int low = 0;
+        int high = _declarations.length - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int midId = _declarations[mid].getCSSName().FS_ID;
+            if (midId < id) {
+                low = mid + 1;
+            } else if (midId > id) {
+                high = mid - 1;
+            } else {
+                return _declarations[mid];
+            }
+        }
+        return null;
     }
 
     /**
@@ -229,25 +338,66 @@ public class CascadedStyle {
      * @return Iterator over a set of properly cascaded PropertyDeclarations.
      */
     public java.util.Iterator<PropertyDeclaration> getCascadedPropertyDeclarations() {
-        final List<PropertyDeclaration> list = new ArrayList<PropertyDeclaration>(cascadedProperties.size());
-        final Iterator<PropertyDeclaration> iter = cascadedProperties.values().iterator();
-        while ( iter.hasNext()) {
-            list.add(iter.next());
-        }
-        return list.iterator();
+        return Collections.unmodifiableList(Arrays.asList(_declarations)).iterator();
     }
 
-    public int countAssigned() { return cascadedProperties.size(); }
+    public int countAssigned() { return _declarations.length; }
 
     public String getFingerprint() {
         if (this.fingerprint == null) {
             final StringBuilder sb = new StringBuilder();
-            final Iterator<PropertyDeclaration> iter = cascadedProperties.values().iterator();
-            while (iter.hasNext()) {
-                sb.append(iter.next().getFingerprint());
+            for (final PropertyDeclaration declaration : _declarations) {
+                sb.append(declaration.getFingerprint());
             }
             this.fingerprint = sb.toString();
         }
         return this.fingerprint;
     }
+
+    /**
+     * Returns a 64 bit hash of the identity of the cascaded declarations. Two
+     * styles that resolve to the very same {@link PropertyDeclaration}
+     * instances have the same key; use {@link #equals(Object)} to be sure.
+     */
+    public long getIdentityKey() {
+        return _identityKey;
+    }
+
+    /**
+     * Two cascaded styles are equal if they resolved every property to the
+     * same {@link PropertyDeclaration} instance.
+     */
+    public boolean equals(final Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (! (o instanceof CascadedStyle)) {
+            return false;
+        }
+        final CascadedStyle other = (CascadedStyle) o;
+        if (_identityKey != other._identityKey ||
+                _declarations.length != other._declarations.length) {
+            return false;
+        }
+        for (int i = 0; i < _declarations.length; i++) {
+            if (_declarations[i] != other._declarations[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int hashCode() {
+        return (int) (_identityKey ^ (_identityKey >>> 32));
+    }
+
+    private static long computeIdentityKey(final PropertyDeclaration[] declarations) {
+        long h = 0x9E3779B97F4A7C15L;
+        for (final PropertyDeclaration declaration : declarations) {
+            h = (h ^ declaration.getCSSName().FS_ID) * 0x100000001B3L;
+            h = (h ^ System.identityHashCode(declaration)) * 0xC2B2AE3D27D4EB4FL;
+            h ^= h >>> 29;
+        }
+        return h;
+    }
 }// end class
@@ -0,0 +1,205 @@
+/*
+ * CompiledStylesheets.java
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.	See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ *
+ */
+package org.xhtmlrenderer.css.newmatch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeMap;
+
+import org.xhtmlrenderer.css.sheet.FontFaceRule;
+import org.xhtmlrenderer.css.sheet.MediaRule;
+import org.xhtmlrenderer.css.sheet.PageRule;
+import org.xhtmlrenderer.css.sheet.Ruleset;
+import org.xhtmlrenderer.css.sheet.Stylesheet;
+import org.xhtmlrenderer.util.ConcurrentLruCache;
+import org.xhtmlrenderer.util.XRLog;
+
+/**
+ * The selectors, page rules and font face rules of a list of stylesheets for
+ * one medium, sorted and indexed the way a {@link Matcher} needs them.
+ * Instances are immutable and may be shared by any number of Matchers, on any
+ * number of threads. The per document state (which elements map to which
+ * selectors) stays in the Matcher.
+ * <p/>
+ * {@link #getInstance(List, String)} keeps recently compiled sets keyed by the
+ * stylesheet URIs and medium, so documents rendered against the same
+ * stylesheets only pay for sorting the selectors once. A cached set is only
+ * reused while it was compiled from the very same {@link Stylesheet} instances,
+ * so a stylesheet that was flushed from the stylesheet cache and parsed again
+ * is compiled again too.
+ */
+public final class CompiledStylesheets {
+    private static final int MAX_CACHED = 32;
+
+    private static final ConcurrentLruCache<String, CompiledStylesheets> _cache =
+            new ConcurrentLruCache<String, CompiledStylesheets>(MAX_CACHED);
+
+    private final String _medium;
+    private final List<Stylesheet> _stylesheets;
+
+    private final List<Selector> _selectors;
+    private final SelectorIndex _index;
+    private final List<PageRule> _pageRules;
+    private final List<FontFaceRule> _fontFaceRules;
+
+    private CompiledStylesheets(final List<Stylesheet> stylesheets, final String medium) {
+        _medium = medium;
+        _stylesheets = Collections.unmodifiableList(new ArrayList<Stylesheet>(stylesheets));
+
+        final TreeMap<String, Selector> sorter = new TreeMap<String, Selector>();
+        final List<PageRule> pageRules = new ArrayList<PageRule>();
+        final List<FontFaceRule> fontFaceRules = new ArrayList<FontFaceRule>();
+        addAllStylesheets(stylesheets, sorter, pageRules, fontFaceRules, medium);
+        XRLog.match("Matcher created with " + sorter.size() + " selectors");
+
+        _selectors = Collections.unmodifiableList(new ArrayList<Selector>(sorter.values()));
+        _index = new SelectorIndex(_selectors);
+        _pageRules = Collections.unmodifiableList(pageRules);
+        _fontFaceRules = Collections.unmodifiableList(fontFaceRules);
+    }
+
+    /**
+     * Compiles <code>stylesheets</code> without consulting or filling the
+     * shared cache.
+     */
+    public static CompiledStylesheets compile(final List<Stylesheet> stylesheets, final String medium) {
+        return new CompiledStylesheets(stylesheets, medium);
+    }
+
+    /**
+     * Returns the compiled form of <code>stylesheets</code>, reusing a
+     * previously compiled set if one was built from the same stylesheets for
+     * the same medium.
+     */
+    public static CompiledStylesheets getInstance(final List<Stylesheet> stylesheets, final String medium) {
+        final String key = createKey(stylesheets, medium);
+        if (key == null) {
+            return compile(stylesheets, medium);
+        }
+
+        final CompiledStylesheets cached = _cache.get(key);
+        if (cached != null && cached.isCompiledFrom(stylesheets, medium)) {
+            return cached;
+        }
+
+        final CompiledStylesheets result = compile(stylesheets, medium);
+        _cache.put(key, result);
+        return result;
+    }
+
+    /**
+     * Drops all compiled sets kept by {@link #getInstance(List, String)}.
+     */
+    public static void flushCache() {
+        _cache.clear();
+    }
+
+    public String getMedium() {
+        return _medium;
+    }
+
+    public List<FontFaceRule> getFontFaceRules() {
+        return _fontFaceRules;
+    }
+
+    List<Selector> getSelectors() {
+        return _selectors;
+    }
+
+    SelectorIndex getIndex() {
+        return _index;
+    }
+
+    List<PageRule> getPageRules() {
+        return _pageRules;
+    }
+
+    private boolean isCompiledFrom(final List<Stylesheet> stylesheets, final String medium) {
+        if (! _medium.equals(medium) || _stylesheets.size() != stylesheets.size()) {
+            return false;
+        }
+        for (int i = 0; i < _stylesheets.size(); i++) {
+            if (_stylesheets.get(i) != stylesheets.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return null if one of the stylesheets has no URI to key it by
+     */
+    private static String createKey(final List<Stylesheet> stylesheets, final String medium) {
+        if (medium == null) {
+            return null;
+        }
+        final StringBuilder key = new StringBuilder(medium);
+        for (final Stylesheet stylesheet : stylesheets) {
+            if (stylesheet.getURI() == null) {
+                return null;
+            }
+            key.append('\n').append(stylesheet.getURI());
+        }
+        return key.toString();
+    }
+
+    private static void addAllStylesheets(
+            final List<Stylesheet> stylesheets, final TreeMap<String, Selector> sorter,
+            final List<PageRule> pageRules, final List<FontFaceRule> fontFaceRules, final String medium) {
+        int count = 0;
+        for (final Stylesheet stylesheet : stylesheets) {
+            for (final Object obj : stylesheet.getContents()) {
+                if (obj instanceof Ruleset) {
+                    for (final Selector selector : ((Ruleset)obj).getFSSelectors()) {
+                        sorter.put(selector.getOrder(++count), selector);
+                    }
+                } else if (obj instanceof PageRule) {
+                    pageRules.add((PageRule) obj);
+                } else if (obj instanceof MediaRule) {
+                    final MediaRule mediaRule = (MediaRule)obj;
+                    if (mediaRule.matches(medium)) {
+                        for (final Ruleset ruleset : mediaRule.getContents()) {
+                            for (final Selector selector : ruleset.getFSSelectors()) {
+                                sorter.put(selector.getOrder(++count), selector);
+                            }
+                        }
+                    }
+                }
+            }
+
+            fontFaceRules.addAll(stylesheet.getFontFaceRules());
+        }
+
+        // The sort is stable, so page rules of equal specificity stay in
+        // stylesheet order without having to number them
+        Collections.sort(pageRules, new Comparator<PageRule>() {
+            public int compare(final PageRule p1, final PageRule p2) {
+                if (p1.getOrder() - p2.getOrder() < 0) {
+                    return -1;
+                } else if (p1.getOrder() == p2.getOrder()) {
+                    return 0;
+                } else {
+                    return 1;
+                }
+            }
+        });
+    }
+}
@@ -502,7 +502,7 @@ abstract class Condition {
 
     }
     
-    private static String[] split(final String s, final char ch) {
+    static String[] split(final String s, final char ch) {
         if (s.indexOf(ch) == -1) {
             return new String[] { s };
         } else {
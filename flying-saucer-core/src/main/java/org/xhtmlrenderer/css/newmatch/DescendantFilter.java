@@ -0,0 +1,181 @@
+/*
+ * DescendantFilter.java
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.	See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ *
+ */
+package org.xhtmlrenderer.css.newmatch;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.jsoup.nodes.Element;
+import org.xhtmlrenderer.css.extend.AttributeResolver;
+import org.xhtmlrenderer.css.extend.TreeResolver;
+
+/**
+ * A bloom filter over the element names, ids and classes found below an
+ * element. The Matcher works down the tree, so a selector chain is extended
+ * into an element's subtree once its first part has matched the element. If
+ * the remaining parts of the chain require a name, id or class that the
+ * filter has never seen below the element, the chain cannot match there and
+ * need not be carried forward at all.
+ * <p/>
+ * Summaries are built lazily, once per element, and only for jsoup elements.
+ * Removing an element's summary also drops those of its ancestors.
+ * False positives just mean a chain is carried forward that would have been
+ * carried forward anyway.
+ */
+final class DescendantFilter {
+    private static final int WORDS = 8;
+    private static final int MASK = WORDS * 64 - 1;
+
+    private static final int NAME_SEED = 0;
+    private static final int ID_SEED = 0x5bd1e995;
+    private static final int CLASS_SEED = 0x1b873593;
+
+    private static final long[] EMPTY = new long[WORDS];
+
+    private final AttributeResolver _attRes;
+    private final TreeResolver _treeRes;
+
+    private final Map<Object, long[]> _summaries = new IdentityHashMap<Object, long[]>();
+
+    private long _tested;
+    private long _rejected;
+
+    DescendantFilter(final AttributeResolver attRes, final TreeResolver treeRes) {
+        _attRes = attRes;
+        _treeRes = treeRes;
+    }
+
+    /**
+     * @return false if <code>chain</code> (and the selectors chained to it)
+     *         certainly cannot match any element below <code>e</code>
+     */
+    boolean mayMatchBelow(final Object e, final Selector chain) {
+        final long[] bits = getSummary(e);
+        if (bits == null) {
+            return true;
+        }
+
+        _tested++;
+        for (Selector s = chain; s != null; s = s.getChainedSelector()) {
+            if (! (contains(bits, s.getIndexName(), NAME_SEED) &&
+                    contains(bits, s.getIndexID(), ID_SEED) &&
+                    contains(bits, s.getIndexClass(), CLASS_SEED))) {
+                _rejected++;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Forgets the summary of <code>e</code> and of all its ancestors, since
+     * every one of them covers the names, ids and classes of <code>e</code>
+     * and its subtree.
+     */
+    void remove(final Object e) {
+        for (Object ancestor = e; ancestor != null; ancestor = _treeRes.getParentElement(ancestor)) {
+            _summaries.remove(ancestor);
+        }
+    }
+
+    long getTested() {
+        return _tested;
+    }
+
+    long getRejected() {
+        return _rejected;
+    }
+
+    private long[] getSummary(final Object e) {
+        if (! (e instanceof Element)) {
+            return null;
+        }
+
+        long[] result = _summaries.get(e);
+        if (result != null) {
+            return result;
+        }
+
+        final Element element = (Element) e;
+        if (element.children().isEmpty()) {
+            result = EMPTY;
+        } else {
+            result = new long[WORDS];
+            for (final Element child : element.children()) {
+                addKeys(result, child);
+                final long[] below = getSummary(child);
+                for (int i = 0; i < WORDS; i++) {
+                    result[i] |= below[i];
+                }
+            }
+        }
+
+        _summaries.put(e, result);
+        return result;
+    }
+
+    private void addKeys(final long[] bits, final Object e) {
+        add(bits, _treeRes.getElementName(e), NAME_SEED);
+
+        // id and class conditions never match without an attribute resolver
+        if (_attRes != null) {
+            add(bits, _attRes.getID(e), ID_SEED);
+
+            final String cls = _attRes.getClass(e);
+            if (cls != null) {
+                for (final String c : Condition.split(cls, ' ')) {
+                    add(bits, c, CLASS_SEED);
+                }
+            }
+        }
+    }
+
+    private static void add(final long[] bits, final String key, final int seed) {
+        if (key == null) {
+            return;
+        }
+        final int h = hash(key, seed);
+        set(bits, h & MASK);
+        set(bits, (h >>> 16) & MASK);
+    }
+
+    private static boolean contains(final long[] bits, final String key, final int seed) {
+        if (key == null) {
+            return true;
+        }
+        final int h = hash(key, seed);
+        return isSet(bits, h & MASK) && isSet(bits, (h >>> 16) & MASK);
+    }
+
+    private static int hash(final String key, final int seed) {
+        int h = key.hashCode() ^ seed;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h;
+    }
+
+    private static void set(final long[] bits, final int bit) {
+        bits[bit >>> 6] |= 1L << (bit & 63);
+    }
+
+    private static boolean isSet(final long[] bits, final int bit) {
+        return (bits[bit >>> 6] & (1L << (bit & 63))) != 0;
+    }
+}
@@ -22,30 +22,31 @@ package org.xhtmlrenderer.css.newmatch;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
 
 import org.xhtmlrenderer.css.constants.MarginBoxName;
 import org.xhtmlrenderer.css.extend.AttributeResolver;
 import org.xhtmlrenderer.css.extend.StylesheetFactory;
 import org.xhtmlrenderer.css.extend.TreeResolver;
 import org.xhtmlrenderer.css.sheet.FontFaceRule;
-import org.xhtmlrenderer.css.sheet.MediaRule;
 import org.xhtmlrenderer.css.sheet.PageRule;
 import org.xhtmlrenderer.css.sheet.PropertyDeclaration;
 import org.xhtmlrenderer.css.sheet.Ruleset;
 import org.xhtmlrenderer.css.sheet.Stylesheet;
-import org.xhtmlrenderer.util.XRLog;
 import org.xhtmlrenderer.util.Util;
 
 
 /**
+ * Matches the elements of one document against a set of
+ * {@link CompiledStylesheets}. A Matcher holds per document state and is only
+ * used by the thread rendering that document, so it does no locking of its
+ * own. The compiled stylesheets may be shared with other Matchers.
+ *
  * @author Torbjoern Gannholm
  */
 public class Matcher {
@@ -62,36 +63,53 @@ public class Matcher {
     private Set<Object> _activeElements;
     private Set<Object> _focusElements;
     private Set<Object> _visitElements;
+    /**
+     * Elements whose own match depends on their own or a sibling's dynamic
+     * state. Only these need to be matched again when such state changes; the
+     * other elements of a restyled subtree are matched again only if what
+     * their parent carries down to them changed.
+     */
+    private Set<Object> _dynamicElements;
     
-    private final List<PageRule> _pageRules;
-    private final List<FontFaceRule> _fontFaceRules;
+    private final CompiledStylesheets _stylesheets;
+
+    private final DescendantFilter _descendantFilter;
     
     public Matcher(
             final TreeResolver tr, final AttributeResolver ar, final StylesheetFactory factory, final List<Stylesheet> stylesheets, final String medium) {
+        this(tr, ar, factory, CompiledStylesheets.compile(stylesheets, medium));
+    }
+
+    /**
+     * Creates a Matcher for one document from stylesheets that have already
+     * been compiled. <code>stylesheets</code> is not modified and may be
+     * shared with other Matchers.
+     */
+    public Matcher(
+            final TreeResolver tr, final AttributeResolver ar, final StylesheetFactory factory, final CompiledStylesheets stylesheets) {
         newMaps();
         _treeRes = tr;
         _attRes = ar;
         _styleFactory = factory;
+        _descendantFilter = new DescendantFilter(ar, tr);
         
-        _pageRules = new ArrayList<PageRule>();
-        _fontFaceRules = new ArrayList<FontFaceRule>();
-        docMapper = createDocumentMapper(stylesheets, medium);
+        _stylesheets = stylesheets;
+        docMapper = new Mapper(stylesheets.getSelectors(), stylesheets.getIndex());
     }
     
     public void removeStyle(final Object e) {
         _map.remove(e);
+        _descendantFilter.remove(e);
     }
 
     public CascadedStyle getCascadedStyle(final Object e, final boolean restyle) {
-        synchronized (e) {
-            Mapper em;
-            if (!restyle) {
-                em = getMapper(e);
-            } else {
-                em = matchElement(e);
-            }
-            return em.getCascadedStyle(e);
+        Mapper em;
+        if (!restyle) {
+            em = getMapper(e);
+        } else {
+            em = rematchElement(e);
         }
+        return em.getCascadedStyle(e);
     }
 
     /**
@@ -99,17 +117,15 @@ public class Matcher {
      * We assume that restyle has already been done by a getCascadedStyle if necessary.
      */
     public CascadedStyle getPECascadedStyle(final Object e, final String pseudoElement) {
-        synchronized (e) {
-            final Mapper em = getMapper(e);
-            return em.getPECascadedStyle(e, pseudoElement);
-        }
+        final Mapper em = getMapper(e);
+        return em.getPECascadedStyle(e, pseudoElement);
     }
     
     public PageInfo getPageCascadedStyle(final String pageName, final String pseudoPage) {
         final List<PropertyDeclaration> props = new ArrayList<PropertyDeclaration>();
         final Map<MarginBoxName, List<PropertyDeclaration>> marginBoxes = new HashMap<MarginBoxName, List<PropertyDeclaration>>();
 
-        for (final PageRule pageRule : _pageRules) {
+        for (final PageRule pageRule : _stylesheets.getPageRules()) {
             if (pageRule.applies(pageName, pseudoPage)) {
                 props.addAll(pageRule.getRuleset().getPropertyDeclarations());
                 marginBoxes.putAll(pageRule.getMarginBoxes());
@@ -127,9 +143,25 @@ public class Matcher {
     }
     
     public List<FontFaceRule> getFontFaceRules() {
-        return _fontFaceRules;
+        return _stylesheets.getFontFaceRules();
     }
     
+    /**
+     * @return how many matched selector chains were checked against the
+     * names, ids and classes found below the matched element
+     */
+    public long getDescendantFilterTests() {
+        return _descendantFilter.getTested();
+    }
+
+    /**
+     * @return how many of those chains were dropped because they could not
+     * match anything below the matched element
+     */
+    public long getDescendantFilterRejects() {
+        return _descendantFilter.getRejected();
+    }
+
     public boolean isVisitedStyled(final Object e) {
         return _visitElements.contains(e);
     }
@@ -147,69 +179,32 @@ public class Matcher {
     }
 
     protected Mapper matchElement(final Object e) {
-        synchronized (e) {
-            final Object parent = _treeRes.getParentElement(e);
-            Mapper child;
-            if (parent != null) {
-                final Mapper m = getMapper(parent);
-                child = m.mapChild(e);
-            } else {//has to be document or fragment node
-                child = docMapper.mapChild(e);
-            }
-            return child;
+        final Object parent = _treeRes.getParentElement(e);
+        Mapper child;
+        if (parent != null) {
+            final Mapper m = getMapper(parent);
+            child = m.mapChild(e);
+        } else {//has to be document or fragment node
+            child = docMapper.mapChild(e);
         }
+        return child;
     }
 
-    Mapper createDocumentMapper(final List<Stylesheet> stylesheets, final String medium) {
-        final java.util.TreeMap<String, Selector> sorter = new java.util.TreeMap<String, Selector>();
-        addAllStylesheets(stylesheets, sorter, medium);
-        XRLog.match("Matcher created with " + sorter.size() + " selectors");
-        return new Mapper(sorter.values());
-    }
-    
-    private void addAllStylesheets(final List<Stylesheet> stylesheets, final TreeMap<String, Selector> sorter, final String medium) {
-        int count = 0;
-        int pCount = 0;
-        for (final Stylesheet stylesheet : stylesheets) {
-            for (final Object obj : stylesheet.getContents()) {
-                if (obj instanceof Ruleset) {
-                    for (final Selector selector : ((Ruleset)obj).getFSSelectors()) {
-                        selector.setPos(++count);
-                        sorter.put(selector.getOrder(), selector);
-                    }
-                } else if (obj instanceof PageRule) {
-                    ((PageRule)obj).setPos(++pCount);
-                    _pageRules.add((PageRule) obj);
-                } else if (obj instanceof MediaRule) {
-                    final MediaRule mediaRule = (MediaRule)obj;
-                    if (mediaRule.matches(medium)) {
-                        for (final Ruleset ruleset : mediaRule.getContents()) {
-                            for (final Selector selector : ruleset.getFSSelectors()) {
-                                selector.setPos(++count);
-                                sorter.put(selector.getOrder(), selector);
-                            }
-                        }
-                    }
-                }
+    /**
+     * Matches <code>e</code> again after a change of dynamic state, unless
+     * neither its own state nor the selectors carried down from its parent
+     * can have changed its match.
+     */
+    private Mapper rematchElement(final Object e) {
+        final Mapper old = _map.get(e);
+        if (old != null && !_dynamicElements.contains(e)) {
+            final Object parent = _treeRes.getParentElement(e);
+            final Mapper parentMapper = parent == null ? docMapper : getMapper(parent);
+            if (old.parent == parentMapper.axesOwner) {
+                return old;
             }
-            
-            _fontFaceRules.addAll(stylesheet.getFontFaceRules());
         }
-        
-        Collections.sort(_pageRules, new Comparator<PageRule>() {
-            public int compare(final PageRule o1, final PageRule o2) {
-                final PageRule p1 = (PageRule)o1;
-                final PageRule p2 = (PageRule)o2;
-                
-                if (p1.getOrder() - p2.getOrder() < 0) {
-                    return -1;
-                } else if (p1.getOrder() == p2.getOrder()) {
-                    return 0;
-                } else {
-                    return 1;
-                }
-            }
-        });
+        return matchElement(e);
     }
 
     private void link(final Object e, final Mapper m) {
@@ -217,11 +212,14 @@ public class Matcher {
     }
 
     private void newMaps() {
-        _map = Collections.synchronizedMap(new java.util.HashMap<Object, Mapper>());
-        _hoverElements = Collections.synchronizedSet(new java.util.HashSet<Object>());
-        _activeElements = Collections.synchronizedSet(new java.util.HashSet<Object>());
-        _focusElements = Collections.synchronizedSet(new java.util.HashSet<Object>());
-        _visitElements = Collections.synchronizedSet(new java.util.HashSet<Object>());
+        // Elements are compared by identity anyway, and identity hashing
+        // avoids jsoup's hashCode, which walks all ancestors of the node
+        _map = new IdentityHashMap<Object, Mapper>();
+        _hoverElements = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        _activeElements = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        _focusElements = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        _visitElements = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        _dynamicElements = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
     }
 
     private Mapper getMapper(final Object e) {
@@ -281,31 +279,27 @@ public class Matcher {
     }
 
     private org.xhtmlrenderer.css.sheet.Ruleset getElementStyle(final Object e) {
-        synchronized (e) {
-            if (_attRes == null || _styleFactory == null) {
-                return null;
-            }
-            
-            final String style = _attRes.getElementStyling(e);
-            if (Util.isNullOrEmpty(style)) {
-                return null;
-            }
-            
-            return _styleFactory.parseStyleDeclaration(org.xhtmlrenderer.css.sheet.StylesheetInfo.CSSOrigin.AUTHOR, style);
+        if (_attRes == null || _styleFactory == null) {
+            return null;
+        }
+        
+        final String style = _attRes.getElementStyling(e);
+        if (Util.isNullOrEmpty(style)) {
+            return null;
         }
+        
+        return _styleFactory.parseStyleDeclaration(org.xhtmlrenderer.css.sheet.StylesheetInfo.CSSOrigin.AUTHOR, style);
     }
 
     private org.xhtmlrenderer.css.sheet.Ruleset getNonCssStyle(final Object e) {
-        synchronized (e) {
-            if (_attRes == null || _styleFactory == null) {
-                return null;
-            }
-            final String style = _attRes.getNonCssStyling(e);
-            if (Util.isNullOrEmpty(style)) {
-                return null;
-            }
-            return _styleFactory.parseStyleDeclaration(org.xhtmlrenderer.css.sheet.StylesheetInfo.CSSOrigin.AUTHOR, style);
+        if (_attRes == null || _styleFactory == null) {
+            return null;
         }
+        final String style = _attRes.getNonCssStyling(e);
+        if (Util.isNullOrEmpty(style)) {
+            return null;
+        }
+        return _styleFactory.parseStyleDeclaration(org.xhtmlrenderer.css.sheet.StylesheetInfo.CSSOrigin.AUTHOR, style);
     }
 
     /**
@@ -319,10 +313,32 @@ public class Matcher {
         private HashMap<String, List<Selector>> pseudoSelectors;
         private List<Selector> mappedSelectors;
         private HashMap<String, Mapper> children;
+        private SelectorIndex index;
+        /**
+         * The Mapper that created this one
+         */
+        private Mapper parent;
+        /**
+         * The Mapper that maps the children of this Mapper's elements. Mappers
+         * created by the same parent that carry down the same selectors differ
+         * only in the selectors that end at their own elements, and share the
+         * first such Mapper's children.
+         */
+        private Mapper axesOwner = this;
+        /**
+         * The first child Mapper created for each set of carried down selectors
+         */
+        private HashMap<String, Mapper> axesChildren;
+        /**
+         * The cascade of the mapped selectors, and of the pseudo-element
+         * selectors, shared by all elements linked to this Mapper
+         */
+        private CascadedStyle cascadedStyle;
+        private HashMap<String, CascadedStyle> peCascadedStyles;
 
-        Mapper(final java.util.Collection<Selector> selectors) {
-            axes = new java.util.ArrayList<Selector>(selectors.size());
-            axes.addAll(selectors);
+        Mapper(final java.util.List<Selector> selectors, final SelectorIndex selectorIndex) {
+            axes = selectors;
+            index = selectorIndex;
         }
 
         private Mapper() {
@@ -336,22 +352,43 @@ public class Matcher {
          *         (more correct: preserves the sort order from Matcher creation)
          */
         Mapper mapChild(final Object e) {
+            if (axesOwner != this) {
+                return axesOwner.mapChild(e);
+            }
             //Mapper childMapper = new Mapper();
             final java.util.List<Selector> childAxes = new ArrayList<Selector>(axes.size() + 10);
             final java.util.HashMap<String, List<Selector>> pseudoSelectors = new java.util.HashMap<String, List<Selector>>();
             final java.util.List<Selector> mappedSelectors = new java.util.LinkedList<Selector>();
             final StringBuilder key = new StringBuilder();
-            for (int i = 0, size = axes.size(); i < size; i++) {
-                final Selector sel = axes.get(i);
-                if (sel.getAxis() == Selector.DESCENDANT_AXIS) {
+            final StringBuilder axesKey = new StringBuilder();
+            if (index == null) {
+                index = new SelectorIndex(axes);
+            }
+            final int[] candidates = index.getCandidates(e, _attRes, _treeRes);
+            final int[] descendants = index.getDescendants();
+            //walk both position lists in ascending order to preserve the sort order
+            int c = 0;
+            int d = 0;
+            while (c < candidates.length || d < descendants.length) {
+                final int i;
+                if (d < descendants.length && (c == candidates.length || descendants[d] <= candidates[c])) {
+                    i = descendants[d++];
                     //carry it forward to other descendants
-                    childAxes.add(sel);
-                } else if (sel.getAxis() == Selector.IMMEDIATE_SIBLING_AXIS) {
-                    throw new RuntimeException();
+                    childAxes.add(axes.get(i));
+                    if (c == candidates.length || candidates[c] != i) {
+                        continue;
+                    }
+                    c++;
+                } else {
+                    i = candidates[c++];
                 }
+                final Selector sel = axes.get(i);
                 if (!sel.matches(e, _attRes, _treeRes)) {
                     continue;
                 }
+                if (sel.isSiblingDynamic()) {
+                    _dynamicElements.add(e);
+                }
                 //Assumption: if it is a pseudo-element, it does not also have dynamic pseudo-class
                 final String pseudoElement = sel.getPseudoElement();
                 if (pseudoElement != null) {
@@ -366,36 +403,54 @@ public class Matcher {
                 }
                 if (sel.isPseudoClass(Selector.VISITED_PSEUDOCLASS)) {
                     _visitElements.add(e);
+                    _dynamicElements.add(e);
                 }
                 if (sel.isPseudoClass(Selector.ACTIVE_PSEUDOCLASS)) {
                     _activeElements.add(e);
+                    _dynamicElements.add(e);
                 }
                 if (sel.isPseudoClass(Selector.HOVER_PSEUDOCLASS)) {
                     _hoverElements.add(e);
+                    _dynamicElements.add(e);
                 }
                 if (sel.isPseudoClass(Selector.FOCUS_PSEUDOCLASS)) {
                     _focusElements.add(e);
+                    _dynamicElements.add(e);
                 }
                 if (!sel.matchesDynamic(e, _attRes, _treeRes)) {
                     continue;
                 }
-                key.append(sel.getSelectorID()).append(":");
                 final Selector chain = sel.getChainedSelector();
+                if (chain != null && !_descendantFilter.mayMatchBelow(e, chain)) {
+                    //the rest of the chain needs a name, id or class that never occurs below e
+                    continue;
+                }
+                key.append(sel.getSelectorID()).append(":");
                 if (chain == null) {
                     mappedSelectors.add(sel);
                 } else if (chain.getAxis() == Selector.IMMEDIATE_SIBLING_AXIS) {
                     throw new RuntimeException();
                 } else {
                     childAxes.add(chain);
+                    axesKey.append(sel.getSelectorID()).append(":");
                 }
             }
             if (children == null) children = new HashMap<String, Mapper>();
             Mapper childMapper = children.get(key.toString());
             if (childMapper == null) {
                 childMapper = new Mapper();
+                childMapper.parent = this;
                 childMapper.axes = childAxes;
                 childMapper.pseudoSelectors = pseudoSelectors;
                 childMapper.mappedSelectors = mappedSelectors;
+                if (axesChildren == null) axesChildren = new HashMap<String, Mapper>();
+                final Mapper twin = axesChildren.get(axesKey.toString());
+                if (twin == null) {
+                    axesChildren.put(axesKey.toString(), childMapper);
+                } else {
+                    childMapper.axes = twin.axes;
+                    childMapper.axesOwner = twin;
+                }
                 children.put(key.toString(), childMapper);
             }
             link(e, childMapper);
@@ -403,34 +458,19 @@ public class Matcher {
         }
 
         CascadedStyle getCascadedStyle(final Object e) {
-            CascadedStyle result;
-            synchronized (e) {
-                CascadedStyle cs = null;
-                final org.xhtmlrenderer.css.sheet.Ruleset elementStyling = getElementStyle(e);
-                final org.xhtmlrenderer.css.sheet.Ruleset nonCssStyling = getNonCssStyle(e);
-                final List<PropertyDeclaration> propList = new LinkedList<PropertyDeclaration>();
-                //specificity 0,0,0,0
-                if (nonCssStyling != null) {
-                    propList.addAll(nonCssStyling.getPropertyDeclarations());
-                }
-                //these should have been returned in order of specificity
-                for (final Iterator<Ruleset> i = getMatchedRulesets(mappedSelectors); i.hasNext();) {
-                    final org.xhtmlrenderer.css.sheet.Ruleset rs = (org.xhtmlrenderer.css.sheet.Ruleset) i.next();
-                    propList.addAll(rs.getPropertyDeclarations());
-                }
-                //specificity 1,0,0,0
-                if (elementStyling != null) {
-                    propList.addAll(elementStyling.getPropertyDeclarations());
-                }
-                if (propList.size() == 0)
-                    cs = CascadedStyle.emptyCascadedStyle;
-                else {
-                    cs = new CascadedStyle(propList.iterator());
-                }
-
-                result = cs;
+            if (cascadedStyle == null) {
+                cascadedStyle = createCascadedStyle(getMatchedRulesets(mappedSelectors));
+            }
+            final org.xhtmlrenderer.css.sheet.Ruleset elementStyling = getElementStyle(e);
+            final org.xhtmlrenderer.css.sheet.Ruleset nonCssStyling = getNonCssStyle(e);
+            if (elementStyling == null && nonCssStyling == null) {
+                return cascadedStyle;
             }
-            return result;
+            //specificity 0,0,0,0 below the matched rulesets, 1,0,0,0 above them
+            return new CascadedStyle(
+                    nonCssStyling == null ? null : nonCssStyling.getPropertyDeclarations().iterator(),
+                    cascadedStyle,
+                    elementStyling == null ? null : elementStyling.getPropertyDeclarations().iterator());
         }
 
         /**
@@ -438,26 +478,34 @@ public class Matcher {
          * We assume that restyle has already been done by a getCascadedStyle if necessary.
          */
         public CascadedStyle getPECascadedStyle(final Object e, final String pseudoElement) {
-            final java.util.Iterator<Map.Entry<String, List<Selector>>> si = pseudoSelectors.entrySet().iterator();
-            if (!si.hasNext()) {
-                return null;
-            }
-            CascadedStyle cs = null;
             final java.util.List<Selector> pe = pseudoSelectors.get(pseudoElement);
             if (pe == null) return null;
 
-            final java.util.List<PropertyDeclaration> propList = new java.util.LinkedList<PropertyDeclaration>();
-            for (final java.util.Iterator<Ruleset> i = getSelectedRulesets(pe); i.hasNext();) {
-                final org.xhtmlrenderer.css.sheet.Ruleset rs = (org.xhtmlrenderer.css.sheet.Ruleset) i.next();
-                propList.addAll(rs.getPropertyDeclarations());
+            if (peCascadedStyles == null) {
+                peCascadedStyles = new HashMap<String, CascadedStyle>();
             }
-            if (propList.size() == 0)
-                cs = CascadedStyle.emptyCascadedStyle;//already internalized
-            else {
-                cs = new CascadedStyle(propList.iterator());
+            CascadedStyle cs = peCascadedStyles.get(pseudoElement);
+            if (cs == null) {
+                cs = createCascadedStyle(getSelectedRulesets(pe));
+                peCascadedStyles.put(pseudoElement, cs);
             }
             return cs;
         }
+
+        /**
+         * @param rulesets in order of specificity
+         */
+        private CascadedStyle createCascadedStyle(final Iterator<Ruleset> rulesets) {
+            final List<PropertyDeclaration> propList = new ArrayList<PropertyDeclaration>();
+            while (rulesets.hasNext()) {
+                propList.addAll(rulesets.next().getPropertyDeclarations());
+            }
+            if (propList.isEmpty()) {
+                return CascadedStyle.emptyCascadedStyle;
+            } else {
+                return new CascadedStyle(propList.iterator());
+            }
+        }
     }
 }
 
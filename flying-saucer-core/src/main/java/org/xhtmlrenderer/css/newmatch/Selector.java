@@ -24,6 +24,7 @@ import org.xhtmlrenderer.css.extend.TreeResolver;
 import org.xhtmlrenderer.css.sheet.Ruleset;
 import org.xhtmlrenderer.util.XRLog;
 
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 
 
@@ -49,10 +50,12 @@ public class Selector {
     private int _specificityC;
     private int _specificityD;
 
-    private int _pos;//to distinguish between selectors of same specificity
-
     private java.util.List<Condition> conditions;
 
+    //keys used by SelectorIndex to bucket this selector, first one of each kind wins
+    private String _indexID;
+    private String _indexClass;
+
     public final static int DESCENDANT_AXIS = 0;
     public final static int CHILD_AXIS = 1;
     public final static int IMMEDIATE_SIBLING_AXIS = 2;
@@ -66,10 +69,10 @@ public class Selector {
      * Give each a unique ID to be able to create a key to internalize Matcher.Mappers
      */
     private final int selectorID;
-    private static int selectorCount = 0;
+    private static final AtomicInteger selectorCount = new AtomicInteger();
 
     public Selector() {
-        selectorID = selectorCount++;
+        selectorID = selectorCount.getAndIncrement();
     }
 
     /**
@@ -205,6 +208,9 @@ public class Selector {
      */
     public void addIDCondition(final String id) {
         _specificityB++;
+        if (_indexID == null) {
+            _indexID = id;
+        }
         addCondition(Condition.createIDCondition(id));
     }
 
@@ -213,6 +219,9 @@ public class Selector {
      */
     public void addClassCondition(final String className) {
         _specificityC++;
+        if (_indexClass == null) {
+            _indexClass = className;
+        }
         addCondition(Condition.createClassCondition(className));
     }
 
@@ -379,18 +388,21 @@ public class Selector {
 
     /**
      * returns "a number in a large base" with specificity and specification
-     * order of selector
+     * order of selector. The position is passed in rather than stored on the
+     * selector so that stylesheets shared between documents are never
+     * modified while being compiled.
      *
+     * @param pos the position of the selector in the stylesheets being compiled
      * @return The order value
      */
-    String getOrder() {
+    String getOrder(final int pos) {
         if (chainedSelector != null) {
-            return chainedSelector.getOrder();
+            return chainedSelector.getOrder(pos);
         }//only "deepest" value is correct
         final String b = "000" + getSpecificityB();
         final String c = "000" + getSpecificityC();
         final String d = "000" + getSpecificityD();
-        final String p = "00000" + _pos;
+        final String p = "00000" + pos;
         return "0" + b.substring(b.length() - 3) + c.substring(c.length() - 3) + d.substring(d.length() - 3) + p.substring(p.length() - 5);
     }
 
@@ -438,6 +450,44 @@ public class Selector {
         return "1" + "000" + "000" + "000" + "00000";
     }
 
+    /**
+     * The id this selector requires the element to have, if any. Used to bucket
+     * the selector in a {@link SelectorIndex}.
+     */
+    String getIndexID() {
+        return _indexID;
+    }
+
+    /**
+     * One of the classes this selector requires the element to have, if any.
+     * Used to bucket the selector in a {@link SelectorIndex}.
+     */
+    String getIndexClass() {
+        return _indexClass;
+    }
+
+    /**
+     * The element name this selector requires, if it can be compared directly
+     * against {@link TreeResolver#getElementName(Object)}. Namespaced names are
+     * not indexed.
+     */
+    String getIndexName() {
+        return _namespaceURI == null ? _name : null;
+    }
+
+    /**
+     * @return true if whether this selector matches also depends on the
+     *         hover, focus, active or visited state of a sibling
+     */
+    boolean isSiblingDynamic() {
+        for (Selector s = siblingSelector; s != null; s = s.siblingSelector) {
+            if (s._pc != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public int getSelectorID() {
         return selectorID;
     }
@@ -447,16 +497,6 @@ public class Selector {
         _specificityD++;
     }
     
-    public void setPos(final int pos) {
-        _pos = pos;
-        if (siblingSelector != null) {
-            siblingSelector.setPos(pos);
-        }
-        if (chainedSelector != null) {
-            chainedSelector.setPos(pos);
-        }
-    }
-    
     public void setParent(final Ruleset ruleset) {
         _parent = ruleset;
     }
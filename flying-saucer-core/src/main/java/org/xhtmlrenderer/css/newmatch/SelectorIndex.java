@@ -0,0 +1,188 @@
+/*
+ * SelectorIndex.java
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.	See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ *
+ */
+package org.xhtmlrenderer.css.newmatch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.xhtmlrenderer.css.extend.AttributeResolver;
+import org.xhtmlrenderer.css.extend.TreeResolver;
+
+/**
+ * A rule hash over the selectors of a {@link Matcher.Mapper}. Every selector
+ * is put in exactly one bucket, keyed by the id, class or element name its
+ * own simple selector requires (in that order of preference), or in the
+ * universal bucket if it requires none of them. Only the buckets an element
+ * can possibly satisfy need to be tested against it.
+ * <p/>
+ * Buckets hold positions into the mapper's selector list, so candidates can be
+ * visited in the original (specificity) order.
+ */
+final class SelectorIndex {
+    private static final int[] EMPTY = new int[0];
+
+    private final Map<String, int[]> _byID;
+    private final Map<String, int[]> _byClass;
+    private final Map<String, int[]> _byName;
+    private final int[] _universal;
+    private final int[] _descendants;
+
+    SelectorIndex(final List<Selector> selectors) {
+        final Map<String, List<Integer>> byID = new HashMap<String, List<Integer>>();
+        final Map<String, List<Integer>> byClass = new HashMap<String, List<Integer>>();
+        final Map<String, List<Integer>> byName = new HashMap<String, List<Integer>>();
+        final List<Integer> universal = new ArrayList<Integer>();
+        final List<Integer> descendants = new ArrayList<Integer>();
+
+        for (int i = 0, size = selectors.size(); i < size; i++) {
+            final Selector sel = selectors.get(i);
+            if (sel.getAxis() == Selector.DESCENDANT_AXIS) {
+                descendants.add(i);
+            } else if (sel.getAxis() == Selector.IMMEDIATE_SIBLING_AXIS) {
+                throw new RuntimeException();
+            }
+
+            if (sel.getIndexID() != null) {
+                add(byID, sel.getIndexID(), i);
+            } else if (sel.getIndexClass() != null) {
+                add(byClass, sel.getIndexClass(), i);
+            } else if (sel.getIndexName() != null) {
+                add(byName, sel.getIndexName(), i);
+            } else {
+                universal.add(i);
+            }
+        }
+
+        _byID = toArrays(byID);
+        _byClass = toArrays(byClass);
+        _byName = toArrays(byName);
+        _universal = toArray(universal);
+        _descendants = toArray(descendants);
+    }
+
+    /**
+     * @return the positions of all descendant-axis selectors, in ascending
+     *         order. These are carried forward whether they match or not.
+     */
+    int[] getDescendants() {
+        return _descendants;
+    }
+
+    /**
+     * @return the positions of the selectors that may match <code>e</code>,
+     *         in ascending order and without duplicates
+     */
+    int[] getCandidates(final Object e, final AttributeResolver attRes, final TreeResolver treeRes) {
+        final List<int[]> buckets = new ArrayList<int[]>(4);
+        int total = 0;
+
+        if (_universal.length > 0) {
+            buckets.add(_universal);
+            total += _universal.length;
+        }
+
+        if (! _byName.isEmpty()) {
+            final String name = treeRes.getElementName(e);
+            if (name != null) {
+                total += addBucket(buckets, _byName.get(name));
+            }
+        }
+
+        // id and class conditions never match without an attribute resolver
+        if (attRes != null) {
+            if (! _byID.isEmpty()) {
+                final String id = attRes.getID(e);
+                if (id != null) {
+                    total += addBucket(buckets, _byID.get(id));
+                }
+            }
+
+            if (! _byClass.isEmpty()) {
+                final String cls = attRes.getClass(e);
+                if (cls != null) {
+                    for (final String c : Condition.split(cls, ' ')) {
+                        total += addBucket(buckets, _byClass.get(c));
+                    }
+                }
+            }
+        }
+
+        if (total == 0) {
+            return EMPTY;
+        } else if (buckets.size() == 1) {
+            return buckets.get(0);
+        }
+
+        final int[] result = new int[total];
+        int pos = 0;
+        for (final int[] bucket : buckets) {
+            System.arraycopy(bucket, 0, result, pos, bucket.length);
+            pos += bucket.length;
+        }
+        Arrays.sort(result);
+
+        // a repeated class name brings in its bucket twice
+        int unique = 1;
+        for (int i = 1; i < result.length; i++) {
+            if (result[i] != result[unique - 1]) {
+                result[unique++] = result[i];
+            }
+        }
+        return unique == result.length ? result : Arrays.copyOf(result, unique);
+    }
+
+    private static int addBucket(final List<int[]> buckets, final int[] bucket) {
+        if (bucket == null) {
+            return 0;
+        }
+        buckets.add(bucket);
+        return bucket.length;
+    }
+
+    private static void add(final Map<String, List<Integer>> map, final String key, final int pos) {
+        List<Integer> l = map.get(key);
+        if (l == null) {
+            l = new ArrayList<Integer>();
+            map.put(key, l);
+        }
+        l.add(pos);
+    }
+
+    private static Map<String, int[]> toArrays(final Map<String, List<Integer>> map) {
+        final Map<String, int[]> result = new HashMap<String, int[]>(map.size() * 2);
+        for (final Map.Entry<String, List<Integer>> entry : map.entrySet()) {
+            result.put(entry.getKey(), toArray(entry.getValue()));
+        }
+        return result;
+    }
+
+    private static int[] toArray(final List<Integer> l) {
+        if (l.isEmpty()) {
+            return EMPTY;
+        }
+        final int[] result = new int[l.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = l.get(i);
+        }
+        return result;
+    }
+}
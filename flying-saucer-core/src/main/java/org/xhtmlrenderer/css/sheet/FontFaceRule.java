@@ -28,7 +28,8 @@ import org.xhtmlrenderer.util.XRRuntimeException;
 public class FontFaceRule implements RulesetContainer {
     private CSSOrigin _origin;
     private Ruleset _ruleset;
-    private CalculatedStyle _calculatedStyle;
+    // Stylesheets may be shared between documents rendered on different threads
+    private volatile CalculatedStyle _calculatedStyle;
 
     public FontFaceRule(final CSSOrigin origin) {
         _origin = origin;
@@ -50,12 +51,14 @@ public class FontFaceRule implements RulesetContainer {
     }
 
     public CalculatedStyle getCalculatedStyle() {
-        if (_calculatedStyle == null) {
-            _calculatedStyle = new EmptyStyle().deriveStyle(
+        CalculatedStyle result = _calculatedStyle;
+        if (result == null) {
+            result = new EmptyStyle().deriveStyle(
                     CascadedStyle.createLayoutStyle(_ruleset.getPropertyDeclarations()));
+            _calculatedStyle = result;
         }
 
-        return _calculatedStyle;
+        return result;
     }
 
     public boolean hasFontFamily() {
@@ -69,9 +69,10 @@ public class PropertyDeclaration {
     private IdentValue _identVal;
 
     /**
-     * Description of the Field
+     * Set after _identVal; volatile because declarations are shared between
+     * documents rendered on different threads
      */
-    private boolean identIsSet;
+    private volatile boolean identIsSet;
     
     private String _fingerprint;
 
@@ -23,7 +23,10 @@ package org.xhtmlrenderer.css.style;
 import java.awt.Cursor;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 
 import org.xhtmlrenderer.css.constants.CSSName;
@@ -46,6 +49,7 @@ import org.xhtmlrenderer.css.style.derived.RectPropertySet;
 import org.xhtmlrenderer.css.value.FontSpecification;
 import org.xhtmlrenderer.render.FSFont;
 import org.xhtmlrenderer.render.FSFontMetrics;
+import org.xhtmlrenderer.util.Configuration;
 import org.xhtmlrenderer.util.GeneralUtil;
 import org.xhtmlrenderer.util.XRLog;
 import org.xhtmlrenderer.util.XRRuntimeException;
@@ -91,16 +95,21 @@ public class CalculatedStyle {
     private BackgroundSize _backgroundSize;
 
     /**
-     * Cache child styles of this style that have the same cascaded properties
+     * How many child styles each style keeps, see {@link #deriveStyle(CascadedStyle)}
      */
-    private final java.util.HashMap<String, CalculatedStyle> _childCache = new java.util.HashMap<String, CalculatedStyle>();
-    /*private java.util.HashMap _childCache = new java.util.LinkedHashMap(5, 0.75f, true) {
-        private static final int MAX_ENTRIES = 10;
+    private static final int MAX_CHILD_STYLES =
+            Configuration.valueAsInt("xr.cache.child-styles", 64);
 
-        protected boolean removeEldestEntry(Map.Entry eldest) {
-            return size() > MAX_ENTRIES;
-        }
-    };*/
+    private static final AtomicLong _childStylesCreated = new AtomicLong();
+    private static final AtomicLong _childStylesEvicted = new AtomicLong();
+
+    /**
+     * Cache child styles of this style that have the same cascaded properties.
+     * Created on first use, as most styles are leaves and never get children.
+     */
+    private LinkedHashMap<CascadedStyle, CalculatedStyle> _childCache;
+
+    private int _childCacheHits;
 
     /**
      * Our main array of property values defined in this style, keyed
@@ -172,21 +181,70 @@ public class CalculatedStyle {
      * derives a child style from this style.
      * <p/>
      * depends on the ability to return the identical CascadedStyle each time a child style is needed
+     * <p/>
+     * A style tree belongs to the document being laid out and is only used by
+     * the thread doing the layout, so the child cache is not locked.
      *
      * @param matched the CascadedStyle to apply
      * @return The derived child style
      */
-    public synchronized CalculatedStyle deriveStyle(final CascadedStyle matched) {
-        final String fingerprint = matched.getFingerprint();
-        CalculatedStyle cs = _childCache.get(fingerprint);
+    public CalculatedStyle deriveStyle(final CascadedStyle matched) {
+        if (_childCache == null) {
+            _childCache = new LinkedHashMap<CascadedStyle, CalculatedStyle>(8, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                protected boolean removeEldestEntry(final Map.Entry<CascadedStyle, CalculatedStyle> eldest) {
+                    if (size() > MAX_CHILD_STYLES) {
+                        _childStylesEvicted.incrementAndGet();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        CalculatedStyle cs = _childCache.get(matched);
 
         if (cs == null) {
             cs = new CalculatedStyle(this, matched);
-            _childCache.put(fingerprint, cs);
+            _childCache.put(matched, cs);
+            _childStylesCreated.incrementAndGet();
+        } else {
+            _childCacheHits++;
         }
         return cs;
     }
 
+    /**
+     * @return the number of child styles currently cached by this style
+     */
+    public int getChildCacheSize() {
+        return _childCache == null ? 0 : _childCache.size();
+    }
+
+    /**
+     * @return how often {@link #deriveStyle(CascadedStyle)} found a cached
+     *         child style of this style
+     */
+    public int getChildCacheHits() {
+        return _childCacheHits;
+    }
+
+    /**
+     * @return how many child styles have been derived, by all styles
+     */
+    public static long getChildStylesCreated() {
+        return _childStylesCreated.get();
+    }
+
+    /**
+     * @return how many child styles have been dropped from a full child
+     *         cache, by all styles
+     */
+    public static long getChildStylesEvicted() {
+        return _childStylesEvicted.get();
+    }
+
     public int countAssigned() {
         int c = 0;
         for (final FSDerivedValue derivedValue : _derivedValuesById) {
@@ -0,0 +1,58 @@
+/*
+ * {{{ header & license
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.	See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ * }}}
+ */
+package org.xhtmlrenderer.extend;
+
+import org.xhtmlrenderer.render.FSFont;
+
+/**
+ * Implemented by a {@link TextRenderer} that can measure part of a
+ * <code>CharSequence</code> without copying it out first. Line breaking
+ * measures many prefixes of the same text, so a measurer also hands out
+ * {@link PrefixWidths}, which add up the text once and answer every prefix
+ * from the running sums.
+ * <p/>
+ * All widths are exactly what {@link TextRenderer#getWidth(FontContext, FSFont, String)}
+ * returns for the same characters.
+ */
+public interface TextMeasurer {
+    /**
+     * The widths of the prefixes of some text
+     */
+    public interface PrefixWidths {
+        /**
+         * @return the width of the text from the start given to
+         *         {@link TextMeasurer#getPrefixWidths(FontContext, FSFont, CharSequence, int)}
+         *         up to <code>end</code>
+         */
+        public int getWidth(int end);
+    }
+
+    /**
+     * @return the width of <code>text</code> from <code>start</code> up to
+     *         <code>end</code>
+     */
+    public int getWidth(FontContext context, FSFont font, CharSequence text, int start, int end);
+
+    /**
+     * @return the widths of the prefixes of <code>text</code> starting at
+     *         <code>start</code>. The text must not change while they are in
+     *         use.
+     */
+    public PrefixWidths getPrefixWidths(FontContext context, FSFont font, CharSequence text, int start);
+}
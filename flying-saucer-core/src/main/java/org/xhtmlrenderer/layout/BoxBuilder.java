@@ -1080,6 +1080,10 @@ public class BoxBuilder {
         if (working != null) {
             InlineBox previousIB = null;
             do {
+                if (sharedContext.isOutsideSection(working)) {
+                    continue;
+                }
+
                 Styleable child = null;
                 final Node nodeType = working;
                 if (nodeType instanceof Element) {
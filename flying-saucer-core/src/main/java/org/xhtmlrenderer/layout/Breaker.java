@@ -21,8 +21,12 @@
 package org.xhtmlrenderer.layout;
 
 import java.text.BreakIterator;
+import java.util.Arrays;
+
 import org.xhtmlrenderer.css.constants.IdentValue;
 import org.xhtmlrenderer.css.style.CalculatedStyle;
+import org.xhtmlrenderer.extend.TextMeasurer;
+import org.xhtmlrenderer.extend.TextRenderer;
 import org.xhtmlrenderer.render.FSFont;
 
 /**
@@ -36,8 +40,7 @@ public class Breaker {
             final int avail, final CalculatedStyle style) {
         final FSFont font = style.getFSFont(c);
         context.setEnd(getFirstLetterEnd(context.getMaster(), context.getStart()));
-        context.setWidth(c.getTextRenderer().getWidth(
-                c.getFontContext(), font, context.getCalculatedSubstring()));
+        context.setWidth(getCalculatedWidth(c, font, context));
 
         if (context.getWidth() > avail) {
             context.setNeedsNewLine(true);
@@ -70,8 +73,7 @@ public class Breaker {
         // ====== handle nowrap
         if (whitespace == IdentValue.NOWRAP) {
         	context.setEnd(context.getLast());
-        	context.setWidth(c.getTextRenderer().getWidth(
-                    c.getFontContext(), font, context.getCalculatedSubstring()));
+        	context.setWidth(getCalculatedWidth(c, font, context));
             return;
         }
 
@@ -79,18 +81,16 @@ public class Breaker {
         if (whitespace == IdentValue.PRE ||
                 whitespace == IdentValue.PRE_WRAP ||
                 whitespace == IdentValue.PRE_LINE) {
-            final int n = context.getStartSubstring().indexOf(WhitespaceStripper.EOL);
+            final int n = context.getMaster().indexOf(WhitespaceStripper.EOL, context.getStart());
 
             if (n > -1) {
-                context.setEnd(context.getStart() + n + 1);
-                context.setWidth(c.getTextRenderer().getWidth(
-                        c.getFontContext(), font, context.getCalculatedSubstring()));
+                context.setEnd(n + 1);
+                context.setWidth(getCalculatedWidth(c, font, context));
                 context.setNeedsNewLine(true);
                 context.setEndsOnNL(true);
             } else if (whitespace == IdentValue.PRE) {
             	context.setEnd(context.getLast());
-                context.setWidth(c.getTextRenderer().getWidth(
-                        c.getFontContext(), font, context.getCalculatedSubstring()));
+                context.setWidth(getCalculatedWidth(c, font, context));
             }
         }
 
@@ -108,12 +108,18 @@ public class Breaker {
             final LineBreakContext context, final int avail, final CalculatedStyle style,
             final boolean tryToBreakAnywhere)
     {
+        final FSFont font = style.getFSFont(c);
+        if (c.getTextRenderer() instanceof TextMeasurer) {
+            final TextMeasurer.PrefixWidths widths = ((TextMeasurer) c.getTextRenderer()).getPrefixWidths(
+                    c.getFontContext(), font, context.getMaster(), context.getStart());
+            searchBreak(c, context, avail, widths, tryToBreakAnywhere);
+            return;
+        }
+
         final String currentString = context.getStartSubstring();
 
-        final BreakIterator iter = c.getTextBreaker();
-        iter.setText(currentString);
+        final BreakCursor iter = new BreakCursor(getLineBreaks(c, context), context.getStart());
 
-        final FSFont font = style.getFSFont(c);
         int width = 0;
         int next = 0;
         int last = 0;
@@ -122,8 +128,7 @@ public class Breaker {
         {
         	// First we get the width of the first five characters.
         	// This should give us a crude idea of the average width of a char.
-        	final float widthChar5 = c.getTextRenderer().getWidth(
-        			c.getFontContext(), font, currentString.substring(0, 4));
+        	final float widthChar5 = getPrefixWidth(c, font, currentString, 4);
         	
         	final float sampledCharLength = widthChar5 / 5; 
 
@@ -143,8 +148,7 @@ public class Breaker {
             while (next < estimate);
 
             // Next, measure our text at the break point.
-            final String broken = currentString.substring(0, last);
-            width = c.getTextRenderer().getWidth(c.getFontContext(), font, broken);
+            width = getPrefixWidth(c, font, currentString, last);
         }
 
         // If we still have room go to one break past.
@@ -154,8 +158,7 @@ public class Breaker {
         	if (next == BreakIterator.DONE)
         		break;
         	last = next;
-        	final String broken = currentString.substring(0, next);
-        	width = c.getTextRenderer().getWidth(c.getFontContext(), font, broken);
+        	width = getPrefixWidth(c, font, currentString, next);
         }
         
         if (width >= avail)
@@ -167,8 +170,7 @@ public class Breaker {
         	if (next == 0 || next == BreakIterator.DONE)
         		break;
         	last = next;
-        	final String broken = currentString.substring(0, next);
-        	width = c.getTextRenderer().getWidth(c.getFontContext(), font, broken);        	
+        	width = getPrefixWidth(c, font, currentString, next);        	
         }
         
         if (width >= avail && !tryToBreakAnywhere)
@@ -177,8 +179,7 @@ public class Breaker {
         {
             while (width >= avail && last > 0)
             {
-            	final String broken = currentString.substring(0, last);
-            	width = c.getTextRenderer().getWidth(c.getFontContext(), font, broken);
+            	width = getPrefixWidth(c, font, currentString, last);
             	last--;
             }
         }
@@ -187,5 +188,163 @@ public class Breaker {
         context.setEnd(context.getStart() + last);
     }
 
+    private static int getCalculatedWidth(final LayoutContext c, final FSFont font, final LineBreakContext context) {
+        final TextRenderer textRenderer = c.getTextRenderer();
+        if (textRenderer instanceof TextMeasurer) {
+            return ((TextMeasurer) textRenderer).getWidth(
+                    c.getFontContext(), font, context.getMaster(), context.getStart(), context.getEnd());
+        }
+        return textRenderer.getWidth(c.getFontContext(), font, context.getCalculatedSubstring());
+    }
+
+    /**
+     * @return the offsets in the master text of <code>context</code> after
+     *         which a line may be broken, in ascending order and ending with
+     *         the length of the text. They are found once per master text.
+     */
+    private static int[] getLineBreaks(final LayoutContext c, final LineBreakContext context) {
+        int[] result = context.getLineBreaks();
+        if (result == null) {
+            result = findLineBreaks(c.getTextBreaker(), context.getMaster());
+            context.setLineBreaks(result);
+        }
+        return result;
+    }
+
+    private static int[] findLineBreaks(final BreakIterator iter, final String text) {
+        iter.setText(text);
+        int[] result = new int[Math.max(4, text.length() / 4)];
+        int count = 0;
+        for (int next = iter.next(); next != BreakIterator.DONE; next = iter.next()) {
+            if (count == result.length) {
+                result = Arrays.copyOf(result, count * 2);
+            }
+            result[count++] = next;
+        }
+        return count == result.length ? result : Arrays.copyOf(result, count);
+    }
+
+    /**
+     * @return the index of the first break at or after <code>offset</code>
+     */
+    private static int indexOfBreak(final int[] breaks, final int offset) {
+        final int i = Arrays.binarySearch(breaks, offset);
+        return i >= 0 ? i : -i - 1;
+    }
+
+    /**
+     * Steps through the breaks after a start offset like a
+     * <code>BreakIterator</code> over the text from that offset would,
+     * returning offsets relative to the start.
+     */
+    private static final class BreakCursor {
+        private final int[] _breaks;
+        private final int _start;
+        private final int _first;
+        private int _current;
+
+        private BreakCursor(final int[] breaks, final int start) {
+            _breaks = breaks;
+            _start = start;
+            _first = indexOfBreak(breaks, start + 1);
+            _current = _first - 1;
+        }
+
+        int next() {
+            if (_current + 1 >= _breaks.length) {
+                return BreakIterator.DONE;
+            }
+            return _breaks[++_current] - _start;
+        }
+
+        int previous() {
+            if (_current < _first) {
+                return BreakIterator.DONE;
+            }
+            return --_current < _first ? 0 : _breaks[_current] - _start;
+        }
+    }
+
+    private static int getPrefixWidth(final LayoutContext c, final FSFont font, final String text, final int end) {
+        return c.getTextRenderer().getWidth(c.getFontContext(), font, text.substring(0, end));
+    }
+
+    /**
+     * Finds the same break as {@link #doBreakText} for a text renderer that
+     * measures prefix sums, where a longer prefix is never narrower. Instead
+     * of stepping from break to break and measuring each prefix, it finds
+     * the shortest prefix that does not fit by galloping and then bisecting
+     * over character offsets, and only then asks the break iterator for the
+     * breaks around that offset.
+     */
+    private static void searchBreak(final LayoutContext c, final LineBreakContext context,
+            final int avail, final TextMeasurer.PrefixWidths widths, final boolean tryToBreakAnywhere) {
+        final String master = context.getMaster();
+        final int start = context.getStart();
+        final int length = master.length() - start;
+
+        // The stepping search never leaves the first offset here
+        if (length == 0 || (length < 5 && avail <= 0)) {
+            if (avail <= 0) {
+                context.setNeedsNewLine(true);
+                if (! tryToBreakAnywhere) {
+                    context.setUnbreakable(true);
+                }
+            }
+            context.setWidth(0);
+            context.setEnd(start);
+            return;
+        }
+
+        // Gallop until a prefix does not fit, then bisect: afterwards
+        // overflow is the length of the shortest prefix that does not fit
+        int fits = 0;
+        int overflow = 1;
+        int width = widths.getWidth(start + overflow);
+        while (width < avail && overflow < length) {
+            fits = overflow;
+            overflow = Math.min(overflow * 2, length);
+            width = widths.getWidth(start + overflow);
+        }
+        if (width < avail) {
+            // Everything fits
+            context.setWidth(width);
+            context.setEnd(master.length());
+            return;
+        }
+        while (overflow - fits > 1) {
+            final int mid = (fits + overflow) >>> 1;
+            if (widths.getWidth(start + mid) < avail) {
+                fits = mid;
+            } else {
+                overflow = mid;
+            }
+        }
+
+        context.setNeedsNewLine(true);
+
+        // The first break that does not fit, and the break before it
+        final int[] breaks = getLineBreaks(c, context);
+        final int i = indexOfBreak(breaks, start + overflow);
+        final int firstOverflowing = breaks[i];
+        final int previous = i > 0 ? breaks[i - 1] : start;
+        if (previous > start) {
+            context.setWidth(widths.getWidth(previous));
+            context.setEnd(previous);
+        } else if (! tryToBreakAnywhere) {
+            context.setUnbreakable(true);
+            context.setWidth(widths.getWidth(firstOverflowing));
+            context.setEnd(firstOverflowing);
+        } else if (overflow == 1) {
+            context.setWidth(widths.getWidth(start + 1));
+            context.setEnd(start);
+        } else {
+            // Like the stepping search, end one character before the last
+            // prefix that fits
+            context.setWidth(widths.getWidth(start + overflow - 1));
+            context.setEnd(start + overflow - 2);
+        }
+    }
+
 }
 
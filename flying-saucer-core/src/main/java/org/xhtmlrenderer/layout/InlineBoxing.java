@@ -159,6 +159,7 @@ public class InlineBoxing {
                 if (iB.isDynamicFunction()) {
                     lbContext.setMaster(iB.getContentFunction().getLayoutReplacementText());
                 }
+                lbContext.setLineBreaks(iB.getLineBreaks(lbContext.getMaster()));
 
                 do {
                     lbContext.reset();
@@ -179,7 +180,7 @@ public class InlineBoxing {
 
                     zeroWidthInlineBlock = false;
 
-                    if (lbContext.getStartSubstring().length() == 0) {
+                    if (lbContext.getStart() >= lbContext.getLast()) {
                         break;
                     }
 
@@ -258,6 +259,10 @@ public class InlineBoxing {
                     }
                 } while (!lbContext.isFinished());
 
+                if (lbContext.getLineBreaks() != null) {
+                    iB.setLineBreaks(lbContext.getMaster(), lbContext.getLineBreaks());
+                }
+
                 if (iB.isEndsHere()) {
                     final int rightMBP = style.getMarginBorderPadding(
                             c, maxAvailableWidth, CalculatedStyle.RIGHT);
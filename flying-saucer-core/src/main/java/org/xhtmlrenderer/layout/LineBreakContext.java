@@ -36,6 +36,7 @@ public class LineBreakContext {
     private int _width;
     private boolean _endsOnNL;
     private Node _textNode;
+    private int[] _lineBreaks;
     
     public int getLast() {
         return _master.length();
@@ -60,6 +61,9 @@ public class LineBreakContext {
     }
     
     public void setMaster(final String master) {
+        if (! master.equals(_master)) {
+            _lineBreaks = null;
+        }
         _master = master;
     }
     
@@ -123,6 +127,18 @@ public class LineBreakContext {
         _endsOnNL = b;
     }
 
+    /**
+     * @return the offsets in the master text after which a line may be
+     *         broken, or null if they have not been found yet
+     */
+    public int[] getLineBreaks() {
+        return _lineBreaks;
+    }
+
+    public void setLineBreaks(final int[] lineBreaks) {
+        _lineBreaks = lineBreaks;
+    }
+
     public Node getTextNode() {
         return this._textNode;
     }
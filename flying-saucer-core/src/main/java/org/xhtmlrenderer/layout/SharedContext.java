@@ -23,7 +23,10 @@ import java.awt.Font;
 import java.awt.HeadlessException;
 import java.awt.Rectangle;
 import java.awt.Toolkit;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashSet;
 import java.util.Locale;
 import java.util.Map;
@@ -71,6 +74,11 @@ public class SharedContext {
 
     private Map<String, Box> idMap;
 
+    private Element sectionParent;
+    private int sectionStart;
+    private int sectionEnd;
+    private Set<Node> sectionCarried;
+
     private StylesheetInfo defaultStylesheet;
     private boolean lookedUpDefaultStylesheet;
     private Locale localeTextBreaker = Locale.US;
@@ -387,6 +395,78 @@ public class SharedContext {
         return idMap;
     }
 
+    /**
+     * Restricts box building to part of a document. Only the child nodes of
+     * <code>parent</code> from index <code>start</code> up to, but not
+     * including, <code>end</code> get boxes, the other children of
+     * <code>parent</code> are left out of layout as if they were not
+     * displayed. They still take part in selector matching.
+     * <p/>
+     * Children that show on pages outside of where they are declared are
+     * kept: fixed position children wherever they are, and for each running
+     * element name the last running child in front of the section, unless
+     * the section has a running child of that name itself.
+     */
+    public void setSection(final Element parent, final int start, final int end) {
+        sectionParent = parent;
+        sectionStart = start;
+        sectionEnd = end;
+        sectionCarried = findCarried(parent, start, end);
+    }
+
+    private Set<Node> findCarried(final Element parent, final int start, final int end) {
+        final Set<Node> result = Collections.newSetFromMap(new IdentityHashMap<Node, Boolean>());
+        final Map<String, Element> running = new HashMap<String, Element>();
+        final Set<String> runningInSection = new HashSet<String>();
+        for (int i = 0; i < parent.childNodeSize(); i++) {
+            final Node child = parent.childNode(i);
+            if (! (child instanceof Element)) {
+                continue;
+            }
+            final CalculatedStyle style = getStyle((Element) child);
+            if (style.isDisplayNone()) {
+                continue;
+            }
+            if (style.isFixed()) {
+                if (i < start || i >= end) {
+                    result.add(child);
+                }
+            } else if (style.isRunning()) {
+                if (i < start) {
+                    running.put(style.getRunningName(), (Element) child);
+                } else if (i < end) {
+                    runningInSection.add(style.getRunningName());
+                }
+            }
+        }
+        for (final Map.Entry<String, Element> entry : running.entrySet()) {
+            if (! runningInSection.contains(entry.getKey())) {
+                result.add(entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Lets box building see the whole document again.
+     */
+    public void clearSection() {
+        sectionParent = null;
+        sectionCarried = null;
+    }
+
+    /**
+     * @return true if <code>node</code> is left out of layout by
+     *         {@link #setSection(Element, int, int)}
+     */
+    public boolean isOutsideSection(final Node node) {
+        if (sectionParent == null || node.parentNode() != sectionParent) {
+            return false;
+        }
+        final int index = node.siblingIndex();
+        return (index < sectionStart || index >= sectionEnd) && ! sectionCarried.contains(node);
+    }
+
     /**
      * Sets the textRenderer attribute of the RenderingContext object
      *
@@ -600,7 +680,7 @@ public class SharedContext {
 
     public CalculatedStyle getStyle(final Element e, final boolean restyle) {
         if (styleMap == null) {
-            styleMap = new HashMap<Element, CalculatedStyle>(1024, 0.75f);
+            styleMap = new IdentityHashMap<Element, CalculatedStyle>(1024);
         }
 
         CalculatedStyle result = null;
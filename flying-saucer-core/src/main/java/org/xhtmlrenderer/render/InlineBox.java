@@ -68,6 +68,9 @@ public class InlineBox implements Styleable {
 
     private final Node _textNode;
 
+    private String _lineBreaksText;
+    private int[] _lineBreaks;
+
     public InlineBox(final String text, final Node node) {
         _text = text;
         _originalText = text;
@@ -88,6 +91,19 @@ public class InlineBox implements Styleable {
         _text = TextUtil.transformText(_text, getStyle());
     }
 
+    /**
+     * @return the line break offsets last found in <code>text</code> while
+     *         laying out this box, or null if they were found in other text
+     */
+    public int[] getLineBreaks(final String text) {
+        return text.equals(_lineBreaksText) ? _lineBreaks : null;
+    }
+
+    public void setLineBreaks(final String text, final int[] lineBreaks) {
+        _lineBreaksText = text;
+        _lineBreaks = lineBreaks;
+    }
+
     public boolean isRemovableWhitespace() {
         return _removableWhitespace;
     }
@@ -0,0 +1,219 @@
+/*
+ * {{{ header & license
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ * }}}
+ */
+package org.xhtmlrenderer.resource;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.xhtmlrenderer.css.constants.CSSName;
+import org.xhtmlrenderer.css.constants.CSSPrimitiveUnit;
+import org.xhtmlrenderer.css.constants.IdentValue;
+import org.xhtmlrenderer.css.constants.MarginBoxName;
+import org.xhtmlrenderer.css.parser.PropertyValue;
+import org.xhtmlrenderer.css.parser.PropertyValueImp;
+import org.xhtmlrenderer.css.sheet.FontFaceRule;
+import org.xhtmlrenderer.css.sheet.MediaRule;
+import org.xhtmlrenderer.css.sheet.PageRule;
+import org.xhtmlrenderer.css.sheet.PropertyDeclaration;
+import org.xhtmlrenderer.css.sheet.Ruleset;
+import org.xhtmlrenderer.css.sheet.Stylesheet;
+import org.xhtmlrenderer.css.sheet.StylesheetInfo;
+import org.xhtmlrenderer.css.style.CalculatedStyle;
+import org.xhtmlrenderer.css.style.FSDerivedValue;
+import org.xhtmlrenderer.extend.NamespaceHandler;
+
+/**
+ * Finds the URIs of the resources a document will load, so they can be
+ * fetched before layout asks for them one at a time. The URIs are returned as
+ * written, except where noted, and may still need to be resolved against the
+ * base URL. Embedded (data:) resources are left out.
+ */
+public final class ResourceDiscovery {
+    private static final Pattern URL_FUNCTION = Pattern.compile(
+            "url\\(\\s*(?:\"([^\"]*)\"|'([^']*)'|([^)\\s]*))\\s*\\)", Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern IMPORT_RULE = Pattern.compile(
+            "@import\\s+(?:url\\(\\s*)?(?:\"([^\"]*)\"|'([^']*)'|([^)\\s;]+))", Pattern.CASE_INSENSITIVE);
+
+    private ResourceDiscovery() {
+    }
+
+    /**
+     * @return the URIs of the external stylesheets of <code>doc</code> that
+     *         apply to <code>medium</code>, and of the stylesheets its
+     *         inline style elements import
+     */
+    public static List<String> findStylesheets(final Document doc, final NamespaceHandler nsh, final String medium) {
+        final Set<String> result = new LinkedHashSet<String>();
+        final List<StylesheetInfo> infos = nsh.getStylesheets(doc);
+        if (infos != null) {
+            for (final StylesheetInfo info : infos) {
+                if (!info.appliesToMedia(medium)) {
+                    continue;
+                }
+                if (info.isInline()) {
+                    addMatches(IMPORT_RULE, info.getContent(), result);
+                } else if (info.getUri() != null) {
+                    result.add(info.getUri());
+                }
+            }
+        }
+        return new ArrayList<String>(result);
+    }
+
+    /**
+     * @return the URIs of the images of <code>doc</code>, and of the
+     *         images referred to from its style attributes
+     */
+    public static List<String> findImages(final Document doc, final NamespaceHandler nsh) {
+        final Set<String> result = new LinkedHashSet<String>();
+        for (final Element e : doc.getAllElements()) {
+            if (nsh.isImageElement(e)) {
+                add(nsh.getImageSourceURI(e), result);
+            }
+            if (e.hasAttr("style")) {
+                addMatches(URL_FUNCTION, e.attr("style"), result);
+            }
+        }
+        return new ArrayList<String>(result);
+    }
+
+    /**
+     * @return the URIs of the stylesheets imported by the stylesheet source
+     *         <code>css</code>
+     */
+    public static List<String> findImports(final CharSequence css) {
+        final Set<String> result = new LinkedHashSet<String>();
+        addMatches(IMPORT_RULE, css, result);
+        return new ArrayList<String>(result);
+    }
+
+    /**
+     * @return the URIs in the property values of <code>sheets</code> that
+     *         apply to <code>medium</code>, i.e. background, list and content
+     *         images. The parser has already resolved these against the URI of
+     *         their stylesheet.
+     */
+    public static List<String> findStylesheetImages(final Collection<Stylesheet> sheets, final String medium) {
+        final Set<String> result = new LinkedHashSet<String>();
+        for (final Stylesheet sheet : sheets) {
+            for (final Object content : sheet.getContents()) {
+                if (content instanceof Ruleset) {
+                    addRuleset((Ruleset) content, result);
+                } else if (content instanceof MediaRule) {
+                    final MediaRule rule = (MediaRule) content;
+                    if (rule.matches(medium)) {
+                        for (final Ruleset ruleset : rule.getContents()) {
+                            addRuleset(ruleset, result);
+                        }
+                    }
+                } else if (content instanceof PageRule) {
+                    final PageRule rule = (PageRule) content;
+                    if (rule.getRuleset() != null) {
+                        addRuleset(rule.getRuleset(), result);
+                    }
+                    for (final Map.Entry<MarginBoxName, List<PropertyDeclaration>> entry : rule.getMarginBoxes().entrySet()) {
+                        addDeclarations(entry.getValue(), result);
+                    }
+                }
+            }
+        }
+        return new ArrayList<String>(result);
+    }
+
+    /**
+     * @return the sources of the font faces of <code>sheets</code>, already
+     *         resolved against the URI of their stylesheet
+     */
+    public static List<String> findFontFaceSources(final Collection<Stylesheet> sheets) {
+        final Set<String> result = new LinkedHashSet<String>();
+        for (final Stylesheet sheet : sheets) {
+            for (final FontFaceRule rule : sheet.getFontFaceRules()) {
+                final CalculatedStyle style = rule.getCalculatedStyle();
+                addFontFaceSource(style.valueByName(CSSName.SRC), result);
+                addFontFaceSource(style.valueByName(CSSName.FS_FONT_METRIC_SRC), result);
+            }
+        }
+        return new ArrayList<String>(result);
+    }
+
+    private static void addRuleset(final Ruleset ruleset, final Set<String> result) {
+        addDeclarations(ruleset.getPropertyDeclarations(), result);
+    }
+
+    private static void addDeclarations(final List<PropertyDeclaration> decls, final Set<String> result) {
+        for (final PropertyDeclaration decl : decls) {
+            addValue(decl.getValue(), result);
+        }
+    }
+
+    private static void addValue(final PropertyValue value, final Set<String> result) {
+        if (value == null) {
+            return;
+        }
+        if (value.getPrimitiveTypeN() == CSSPrimitiveUnit.CSS_URI) {
+            add(value.getStringValue(), result);
+        } else if (value.getPropertyValueType() == PropertyValueImp.VALUE_TYPE_LIST) {
+            for (final Object o : value.getValues()) {
+                if (o instanceof PropertyValue) {
+                    addValue((PropertyValue) o, result);
+                }
+            }
+        }
+    }
+
+    private static void addFontFaceSource(final FSDerivedValue src, final Set<String> result) {
+        if (src != IdentValue.NONE) {
+            add(src.asString(), result);
+        }
+    }
+
+    private static void addMatches(final Pattern pattern, final CharSequence text, final Set<String> result) {
+        if (text == null) {
+            return;
+        }
+        final Matcher m = pattern.matcher(text);
+        while (m.find()) {
+            for (int i = 1; i <= m.groupCount(); i++) {
+                if (m.group(i) != null) {
+                    add(m.group(i), result);
+                    break;
+                }
+            }
+        }
+    }
+
+    private static void add(String uri, final Set<String> result) {
+        if (uri == null) {
+            return;
+        }
+        uri = uri.trim();
+        if (uri.length() > 0 && !uri.regionMatches(true, 0, "data:", 0, 5)) {
+            result.add(uri);
+        }
+    }
+}
@@ -24,11 +24,14 @@ package org.xhtmlrenderer.simple;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.net.URL;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import org.jsoup.nodes.Attribute;
 import org.jsoup.nodes.DataNode;
@@ -53,6 +56,12 @@ import static org.xhtmlrenderer.util.GeneralUtil.ciEquals;
 public class HtmlNamespaceHandler implements NamespaceHandler 
 {
     private Map<String, String> _metadata = null;
+
+    /**
+     * Parsed default stylesheets, keyed by resource path
+     */
+    private static final ConcurrentMap<String, Stylesheet> _defaultStylesheets =
+            new ConcurrentHashMap<String, Stylesheet>();
 	
 	@Override
 	public String getAttributeValue(final Element e, final String attrName) 
@@ -700,26 +709,68 @@ public class HtmlNamespaceHandler implements NamespaceHandler
         return null;
     }
 
+    /**
+     * Returns the default stylesheet. It is parsed once per JVM and then
+     * shared by every document and renderer; stylesheets are not modified
+     * once parsed. The default stylesheet uses no CMYK colors, so what it
+     * parses to does not depend on the factory that parses it.
+     */
     @Override
     public StylesheetInfo getDefaultStylesheet(final StylesheetFactory factory) 
     {
+        final String path = Configuration.valueFor("xr.css.user-agent-default-css") + "XhtmlNamespaceHandler.css";
+
+        Stylesheet sheet = _defaultStylesheets.get(path);
+        if (sheet == null) {
+            sheet = parseDefaultStylesheet(factory, path);
+            if (sheet == null) {
+                return null;
+            }
+            final Stylesheet existing = _defaultStylesheets.putIfAbsent(path, sheet);
+            if (existing != null) {
+                sheet = existing;
+            }
+        }
+
+        final StylesheetInfo info = createDefaultStylesheetInfo(sheet.getURI());
+        info.setStylesheet(sheet);
+        return info;
+    }
+
+    /**
+     * Drops the shared default stylesheet, so it is parsed again on next use.
+     */
+    public static void flushDefaultStylesheet() {
+        _defaultStylesheets.clear();
+    }
+
+    private static StylesheetInfo createDefaultStylesheetInfo(final String uri) {
 		final StylesheetInfo info = new StylesheetInfo();
 		info.setOrigin(StylesheetInfo.CSSOrigin.USER_AGENT);
 		info.setMedia("all");
 		info.setType("text/css");
+		info.setUri(uri);
+		return info;
+    }
 
+    private Stylesheet parseDefaultStylesheet(final StylesheetFactory factory, final String path)
+    {
 		InputStream is = null;
 		try {
-			is = getDefaultStylesheetStream();
+			final URL url = this.getClass().getResource(path);
+			is = getDefaultStylesheetStream(path);
 
 			if (is == null)
 				return null;
-			
-			final Stylesheet sheet = factory.parse(new InputStreamReader(is), info);
-			info.setStylesheet(sheet);
+
+			// Give the sheet a URI, so the stylesheets compiled with it can be
+			// keyed by it
+			final StylesheetInfo info = createDefaultStylesheetInfo(url == null ? null : url.toString());
+			return factory.parse(new InputStreamReader(is), info);
 
 		} catch (final Exception e) {
 			XRLog.exception("Could not parse default stylesheet", e);
+			return null;
 		} finally {
 			if (is != null) {
 				try {
@@ -729,14 +780,11 @@ public class HtmlNamespaceHandler implements NamespaceHandler
 				}
 			}
 		}
-
-		return info;
     }
 
-    private InputStream getDefaultStylesheetStream() 
+    private InputStream getDefaultStylesheetStream(final String defaultStyleSheet) 
     {
         InputStream stream = null;
-        final String defaultStyleSheet = Configuration.valueFor("xr.css.user-agent-default-css") + "XhtmlNamespaceHandler.css";
         stream = this.getClass().getResourceAsStream(defaultStyleSheet);
 
         if (stream == null)
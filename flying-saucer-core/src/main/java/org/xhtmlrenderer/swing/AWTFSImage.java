@@ -43,6 +43,18 @@ public abstract class AWTFSImage implements FSImage {
         }
     }
 
+    /**
+     * @return an FSImage of the same pixels as <code>image</code>, which can be scaled without changing
+     *         <code>image</code>, or <code>image</code> itself if it is not an image created by this class.
+     *         The pixels are not copied.
+     */
+    public static FSImage createSharedImage(final FSImage image) {
+        if (image instanceof NewAWTFSImage) {
+            return new NewAWTFSImage(((NewAWTFSImage) image).getImage());
+        }
+        return image;
+    }
+
     protected AWTFSImage() {
     }
 
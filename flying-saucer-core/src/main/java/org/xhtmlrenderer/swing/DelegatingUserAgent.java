@@ -50,7 +50,7 @@ import java.io.InputStream;
  *
  * @author Torbjoern Gannholm
  */
-public class DelegatingUserAgent implements UserAgentCallback, DocumentListener {
+public class DelegatingUserAgent implements UserAgentCallback, DocumentListener, StylesheetCache.Validator {
     private final UriResolver _uriResolver;
     private ImageResourceLoader _imageResourceLoader;
     protected StylesheetCache _styleCache = new StylesheetCache();
@@ -215,4 +215,22 @@ public class DelegatingUserAgent implements UserAgentCallback, DocumentListener
 	public StylesheetCache getStylesheetCache() {
 		return _styleCache;
 	}
+
+    /**
+     * Uses the last modified time and length of local stylesheets to tell
+     * whether a cached stylesheet is still current.
+     */
+    @Override
+    public String getValidator(final String uri) {
+        return IOUtil.getFileValidator(uri);
+    }
+
+    /**
+     * Replaces the stylesheet cache, e.g. with
+     * {@link StylesheetCache#getSharedInstance()} to share parsed stylesheets
+     * with other user agents.
+     */
+    public void setStylesheetCache(final StylesheetCache styleCache) {
+        _styleCache = styleCache;
+    }
 }
@@ -0,0 +1,295 @@
+package org.xhtmlrenderer.swing;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.xhtmlrenderer.extend.FSImage;
+import org.xhtmlrenderer.resource.ImageResource;
+import org.xhtmlrenderer.util.Configuration;
+import org.xhtmlrenderer.util.ConcurrentLruCache;
+
+/**
+ * A cache of loaded images, keyed by URI. The cache is thread safe, so one
+ * instance may be plugged into any number of user agents, see
+ * {@link #getSharedInstance()}. It is bounded by the estimated size of the
+ * decoded images, and least recently used images are evicted first.
+ * <p/>
+ * {@link #getImage(String, String, Loader)} loads an image that is not
+ * cached. When several threads ask for the same image at once, only one of
+ * them loads it and the others wait for it.
+ * <p/>
+ * As in {@link StylesheetCache}, an image may be cached together with a
+ * validator, and a lookup that passes a different validator does not return
+ * the cached image.
+ * <p/>
+ * Cached images are shared by every user of the cache and must not be
+ * changed, e.g. scaled; scale a wrapper of the image instead, see
+ * {@link AWTFSImage#createSharedImage(FSImage)}.
+ */
+public class ImageCache {
+	/**
+	 * Loads an image that is not in the cache.
+	 */
+	public interface Loader {
+		/**
+		 * @return the image at <code>uri</code>, or null if it could not be
+		 *         loaded. Failures are not cached.
+		 */
+		ImageResource load(String uri);
+	}
+
+	/**
+	 * Rough size in bytes of a cache entry besides its pixels
+	 */
+	private static final int ENTRY_SIZE = 256;
+
+	private static final long DEFAULT_MAX_SIZE =
+			Configuration.valueAsLong("xr.cache.images.max-size", 32L * 1024 * 1024);
+
+	private static final ImageCache _shared = new ImageCache();
+
+	private static final ConcurrentLruCache.Weigher<String, ImageResource> AWT_WEIGHER =
+			new ConcurrentLruCache.Weigher<String, ImageResource>() {
+		public long weigh(final String key, final ImageResource value) {
+			return estimateSize(value);
+		}
+	};
+
+	private static final class Entry {
+		private final ImageResource _resource;
+		private final String _validator;
+		private final long _size;
+
+		private Entry(final ImageResource resource, final String validator, final long size) {
+			_resource = resource;
+			_validator = validator;
+			_size = size;
+		}
+	}
+
+	private final ConcurrentLruCache<String, Entry> _cache;
+	private final ConcurrentLruCache.Weigher<String, ImageResource> _weigher;
+	private final ConcurrentMap<String, FutureTask<ImageResource>> _loading =
+			new ConcurrentHashMap<String, FutureTask<ImageResource>>();
+	private final AtomicLong _invalidations = new AtomicLong();
+	private final AtomicLong _sharedLoads = new AtomicLong();
+
+	/**
+	 * Creates a cache of AWT images bounded by the
+	 * <code>xr.cache.images.max-size</code> configuration property.
+	 */
+	public ImageCache() {
+		this(DEFAULT_MAX_SIZE, AWT_WEIGHER);
+	}
+
+	/**
+	 * Creates a cache bounded by the <code>xr.cache.images.max-size</code>
+	 * configuration property, whose images are weighed by
+	 * <code>weigher</code>.
+	 */
+	public ImageCache(final ConcurrentLruCache.Weigher<String, ImageResource> weigher) {
+		this(DEFAULT_MAX_SIZE, weigher);
+	}
+
+	/**
+	 * Creates a cache holding images of <code>maxSize</code> in total at
+	 * most, as measured by <code>weigher</code>. A null weigher counts each
+	 * image as 1, bounding the cache by its number of images.
+	 */
+	public ImageCache(final long maxSize, final ConcurrentLruCache.Weigher<String, ImageResource> weigher) {
+		_weigher = weigher;
+		_cache = new ConcurrentLruCache<String, Entry>(maxSize, new ConcurrentLruCache.Weigher<String, Entry>() {
+			public long weigh(final String key, final Entry value) {
+				return value._size;
+			}
+		});
+	}
+
+	/**
+	 * @return a cache of AWT images shared by all user agents that choose to
+	 *         use it
+	 */
+	public static ImageCache getSharedInstance() {
+		return _shared;
+	}
+
+	/**
+	 * Returns the image cached for <code>uri</code>, or loads it with
+	 * <code>loader</code> and caches it. Only one thread loads a given URI at
+	 * a time; other threads asking for it meanwhile get the same result.
+	 *
+	 * @return the image, or null if it could not be loaded
+	 */
+	public ImageResource getImage(final String uri, final String validator, final Loader loader) {
+		final ImageResource cached = getImage(uri, validator);
+		if (cached != null || uri == null) {
+			return cached;
+		}
+
+		final FutureTask<ImageResource> task = new FutureTask<ImageResource>(new Callable<ImageResource>() {
+			public ImageResource call() {
+				return loader.load(uri);
+			}
+		});
+		final FutureTask<ImageResource> loading = _loading.putIfAbsent(uri, task);
+		if (loading != null) {
+			_sharedLoads.incrementAndGet();
+			return await(loading);
+		}
+
+		try {
+			task.run();
+			final ImageResource result = await(task);
+			if (result != null) {
+				putImage(uri, result, validator);
+			}
+			return result;
+		} finally {
+			_loading.remove(uri, task);
+		}
+	}
+
+	/**
+	 * Returns a cached image by its URI; null if there is none, or if it was
+	 * cached with a validator other than <code>validator</code>. A stale
+	 * image is removed.
+	 */
+	public ImageResource getImage(final String uri, final String validator) {
+		if (uri == null) {
+			return null;
+		}
+
+		final Entry entry = _cache.get(uri);
+		if (entry == null) {
+			return null;
+		}
+		if (validator != null && entry._validator != null && ! validator.equals(entry._validator)) {
+			_cache.remove(uri);
+			_invalidations.incrementAndGet();
+			return null;
+		}
+		return entry._resource;
+	}
+
+	/**
+	 * Adds an image to the cache, along with the validator of the resource
+	 * it was loaded from. Will overwrite an older entry for the same URI.
+	 */
+	public void putImage(final String uri, final ImageResource resource, final String validator) {
+		if (uri == null) {
+			return;
+		}
+		_cache.put(uri, new Entry(resource, validator, _weigher == null ? 1 : _weigher.weigh(uri, resource)));
+	}
+
+	/**
+	 * @return true if an image is cached for <code>uri</code>. Does not count
+	 *         as a hit or a miss.
+	 */
+	public boolean containsImage(final String uri) {
+		return uri != null && _cache.containsKey(uri);
+	}
+
+	public ImageResource removeImage(final String uri) {
+		if (uri == null) {
+			return null;
+		}
+		final Entry entry = _cache.remove(uri);
+		return entry == null ? null : entry._resource;
+	}
+
+	public void clear() {
+		_cache.clear();
+	}
+
+	public int size() {
+		return _cache.size();
+	}
+
+	/**
+	 * @return the estimated size in bytes of the cached images
+	 */
+	public long getEstimatedSize() {
+		return _cache.getWeight();
+	}
+
+	public long getMaxSize() {
+		return _cache.getMaxWeight();
+	}
+
+	public long getHitCount() {
+		return _cache.getHitCount();
+	}
+
+	public long getMissCount() {
+		return _cache.getMissCount();
+	}
+
+	public long getEvictionCount() {
+		return _cache.getEvictionCount();
+	}
+
+	/**
+	 * @return how many cached images were dropped because their validator
+	 *         changed
+	 */
+	public long getInvalidationCount() {
+		return _invalidations.get();
+	}
+
+	/**
+	 * @return how many lookups waited for another thread loading the same
+	 *         image instead of loading it again
+	 */
+	public long getSharedLoadCount() {
+		return _sharedLoads.get();
+	}
+
+	public String toString() {
+		return _cache.toString() + ", invalidations=" + getInvalidationCount() +
+				", shared loads=" + getSharedLoadCount();
+	}
+
+	private static ImageResource await(final FutureTask<ImageResource> task) {
+		try {
+			return task.get();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (final ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new RuntimeException(cause);
+		}
+	}
+
+	/**
+	 * @return the size in bytes of the pixels of an AWT image, or of 4 bytes
+	 *         per pixel for other images
+	 */
+	private static long estimateSize(final ImageResource resource) {
+		final FSImage image = resource.getImage();
+		if (image instanceof AWTFSImage) {
+			final BufferedImage img = ((AWTFSImage) image).getImage();
+			if (img != null) {
+				final DataBuffer buffer = img.getRaster().getDataBuffer();
+				return ENTRY_SIZE + (long) buffer.getSize() * buffer.getNumBanks() *
+						DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+			}
+		}
+		if (image != null) {
+			return ENTRY_SIZE + 4L * image.getWidth() * image.getHeight();
+		}
+		return ENTRY_SIZE;
+	}
+}
@@ -21,6 +21,7 @@ package org.xhtmlrenderer.swing;
 
 import java.awt.Image;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -28,15 +29,30 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Collection;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import javax.imageio.ImageIO;
 
 import org.xhtmlrenderer.event.DocumentListener;
 import org.xhtmlrenderer.extend.UserAgentCallback;
 import org.xhtmlrenderer.resource.CSSResource;
 import org.xhtmlrenderer.resource.ImageResource;
+import org.xhtmlrenderer.resource.ResourceDiscovery;
 import org.xhtmlrenderer.resource.HTMLResource;
+import org.xhtmlrenderer.util.Configuration;
+import org.xhtmlrenderer.util.IOUtil;
 import org.xhtmlrenderer.util.ImageUtil;
 import org.xhtmlrenderer.util.XRLog;
 
@@ -45,37 +61,62 @@ import org.xhtmlrenderer.util.XRLog;
  * XML, CSS or images are loaded, and reports visited links without any filtering. The most straightforward process
  * available in the JDK is used to load the resources in question--either using java.io or java.net classes.
  *
- * <p>The NaiveUserAgent has a small cache for images,
- * the size of which (number of images) can be passed as a constructor argument. There is no automatic cleaning of
- * the cache; call {@link #shrinkImageCache()} to remove the least-accessed elements--for example, you might do this
- * when a new document is about to be loaded. The NaiveUserAgent is also a DocumentListener; if registered with a
- * source of document events (like the panel hierarchy), it will respond to the
- * {@link org.xhtmlrenderer.event.DocumentListener#documentStarted()} call and attempt to shrink its cache.
+ * <p>The NaiveUserAgent has a cache for images, an {@link ImageCache} bounded by the estimated size of the
+ * decoded images (<code>xr.cache.images.max-size</code>), or by a number of images passed as a constructor
+ * argument. The least recently used images are evicted once the cache is full. To share decoded images between
+ * user agents, e.g. on different threads, plug in {@link ImageCache#getSharedInstance()} with
+ * {@link #setImageCache(ImageCache)}.
+ *
+ * <p>Resources can be fetched ahead of use with {@link #prefetch(Collection)}, concurrently on a shared pool of
+ * threads, so that a document with many images, stylesheets and fonts does not wait for each in turn. The loading
+ * methods then read the fetched bytes instead of opening the resource again. {@link #prefetchImages(Collection)}
+ * loads images into the image cache the same way. The PDF renderer only prefetches when
+ * <code>xr.load.prefetch</code> is turned on.
+ *
+ * <p>Prefetching opens stylesheets and fonts with {@link #openStream(String)} on the prefetch threads, without
+ * going through {@link #resolveAndOpenStream(String)}, {@link #getCSSResource(String)} or
+ * {@link #getBinaryResource(String)}. A subclass that restricts which resources may be loaded, adds
+ * credentials or handles its own URI schemes should do so by overriding {@link #openStream(String)}, or leave
+ * prefetching off. A subclass that overrides {@link #resolveAndOpenStream(String)} without calling it never reads
+ * the prefetched bytes, so each resource is fetched twice.
  *
  * <p>This class is meant as a starting point--it will work out of the box, but you should really implement your
  * own, tuned to your application's needs.
  *
  * @author Torbjoern Gannholm
  */
-public class NaiveUserAgent implements UserAgentCallback, DocumentListener {
+public class NaiveUserAgent implements UserAgentCallback, DocumentListener, StylesheetCache.Validator {
 
-    private static final int DEFAULT_IMAGE_CACHE_SIZE = 16;
+    private static final int DEFAULT_PREFETCH_THREADS = 8;
 
-    /**
-     * a (simple) LRU cache
-     */
-    protected LinkedHashMap<String, ImageResource> _imageCache;
+    private static ThreadPoolExecutor _prefetchExecutor;
+
+    private ImageCache _imageCache;
 
     protected StylesheetCache _styleCache = new StylesheetCache();
-    
-    private final int _imageCacheCapacity;
+
     private String _baseURL;
 
     /**
-     * Creates a new instance of NaiveUserAgent with a max image cache of 16 images.
+     * resources being fetched or fetched by {@link #prefetch(Collection)}, by resolved URI
+     */
+    private final ConcurrentMap<String, Future<byte[]>> _prefetched = new ConcurrentHashMap<String, Future<byte[]>>();
+
+    /**
+     * loads images missing from the image cache with {@link #loadImageResource(String)}
+     */
+    protected final ImageCache.Loader _imageLoader = new ImageCache.Loader() {
+        @Override
+        public ImageResource load(final String uri) {
+            return loadImageResource(uri);
+        }
+    };
+
+    /**
+     * Creates a new instance of NaiveUserAgent with an image cache bounded by the estimated size of its images.
      */
     public NaiveUserAgent() {
-        this(DEFAULT_IMAGE_CACHE_SIZE);
+        this._imageCache = new ImageCache();
     }
 
     /**
@@ -84,24 +125,16 @@ public class NaiveUserAgent implements UserAgentCallback, DocumentListener {
      * @param imgCacheSize Number of images to hold in cache before LRU images are released.
      */
     public NaiveUserAgent(final int imgCacheSize) {
-        this._imageCacheCapacity = imgCacheSize;
-
-        // note we do *not* override removeEldestEntry() here--users of this class must call shrinkImageCache().
-        // that's because we don't know when is a good time to flush the cache
-        this._imageCache = new java.util.LinkedHashMap<String, ImageResource>(_imageCacheCapacity, 0.75f, true);
+        this._imageCache = new ImageCache(imgCacheSize, null);
     }
 
     /**
-     * If the image cache has more items than the limit specified for this class, the least-recently used will
-     * be dropped from cache until it reaches the desired size.
+     * Does nothing; the image cache drops the least-recently used images by itself when it is full.
+     *
+     * @deprecated the image cache bounds itself, there is no need to shrink it
      */
+    @Deprecated
     public void shrinkImageCache() {
-        int ovr = _imageCache.size() - _imageCacheCapacity;
-        final Iterator<String> it = _imageCache.keySet().iterator();
-        while (it.hasNext() && ovr-- > 0) {
-            it.next();
-            it.remove();
-        }
     }
 
     /**
@@ -111,6 +144,18 @@ public class NaiveUserAgent implements UserAgentCallback, DocumentListener {
         _imageCache.clear();
     }
 
+    public ImageCache getImageCache() {
+        return _imageCache;
+    }
+
+    /**
+     * Replaces the image cache, e.g. with {@link ImageCache#getSharedInstance()} to share decoded images with
+     * other user agents.
+     */
+    public void setImageCache(final ImageCache imageCache) {
+        _imageCache = imageCache;
+    }
+
     /**
      * Gets a Reader for the resource identified
      *
@@ -119,8 +164,32 @@ public class NaiveUserAgent implements UserAgentCallback, DocumentListener {
      */
     //TOdO:implement this with nio.
     protected InputStream resolveAndOpenStream(String uri) {
-        java.io.InputStream is = null;
         uri = resolveURI(uri);
+        if (uri != null) {
+            final Future<byte[]> prefetched = _prefetched.remove(uri);
+            if (prefetched != null) {
+                try {
+                    final byte[] data = prefetched.get();
+                    return data == null ? null : new ByteArrayInputStream(data);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (final ExecutionException e) {
+                    // open it again below, which reports the problem
+                }
+            }
+        }
+        return openStream(uri);
+    }
+
+    /**
+     * Opens the resource at a resolved URI, without looking at the prefetched resources. This is the one method
+     * both loading and prefetching open resources with, so it is the place to restrict or authenticate access.
+     *
+     * @param uri An absolute URI.
+     * @return A stream to read the resource from, or null if it could not be opened.
+     */
+    protected InputStream openStream(final String uri) {
+        java.io.InputStream is = null;
         try {
             is = new URL(uri).openStream();
         } catch (final java.net.MalformedURLException e) {
@@ -133,6 +202,139 @@ public class NaiveUserAgent implements UserAgentCallback, DocumentListener {
         return is;
     }
 
+    /**
+     * Starts fetching the resources at the given URIs on a shared pool of at most
+     * <code>xr.load.prefetch-threads</code> threads and returns without waiting. The next
+     * {@link #resolveAndOpenStream(String)} of one of them waits for its fetch to finish and reads the fetched
+     * bytes; each prefetched resource is served once.
+     *
+     * @param uris Locations of the resources, possibly relative.
+     */
+    public void prefetch(final Collection<String> uris) {
+        prefetch(uris, false);
+    }
+
+    /**
+     * Like {@link #prefetch(Collection)}, for stylesheets. The stylesheets these import are prefetched as
+     * soon as their importing stylesheet has been fetched. Stylesheets that are already in the stylesheet cache
+     * are skipped.
+     *
+     * @param uris Locations of the stylesheets, possibly relative.
+     */
+    public void prefetchStylesheets(final Collection<String> uris) {
+        prefetch(uris, true);
+    }
+
+    private void prefetch(final Collection<String> uris, final boolean stylesheets) {
+        for (final String u : uris) {
+            final String uri = resolveURI(u);
+            if (uri == null || _prefetched.containsKey(uri)) {
+                continue;
+            }
+            if (stylesheets && _styleCache.containsStylesheet(uri)) {
+                continue;
+            }
+            final FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws IOException {
+                    final byte[] data = fetch(uri);
+                    if (data != null && stylesheets) {
+                        prefetchImports(uri, data);
+                    }
+                    return data;
+                }
+            });
+            if (_prefetched.putIfAbsent(uri, task) == null) {
+                getPrefetchExecutor().execute(task);
+            }
+        }
+    }
+
+    /**
+     * Starts loading the images at the given URIs into the image cache on the prefetch threads, see
+     * {@link #prefetch(Collection)}. A later {@link #getImageResource(String)} of one of them that is still loading
+     * waits for it. Images that are already cached are skipped.
+     *
+     * @param uris Locations of the images, possibly relative.
+     */
+    public void prefetchImages(final Collection<String> uris) {
+        for (final String u : uris) {
+            final String uri = resolveURI(u);
+            if (uri == null || _imageCache.containsImage(uri)) {
+                continue;
+            }
+            final ImageCache imageCache = _imageCache;
+            getPrefetchExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        imageCache.getImage(uri, getValidator(uri), _imageLoader);
+                    } catch (final RuntimeException e) {
+                        XRLog.load(Level.WARNING, "Could not prefetch image " + uri, e);
+                    }
+                }
+            });
+        }
+    }
+
+    private void prefetchImports(final String uri, final byte[] css) throws IOException {
+        final List<String> imports = ResourceDiscovery.findImports(new String(css, "ISO-8859-1"));
+        for (int i = 0; i < imports.size(); i++) {
+            try {
+                imports.set(i, new URL(new URL(uri), imports.get(i)).toString());
+            } catch (final MalformedURLException e) {
+                // leave it to the parser to report
+            }
+        }
+        prefetchStylesheets(imports);
+    }
+
+    private byte[] fetch(final String uri) throws IOException {
+        final InputStream is = openStream(uri);
+        if (is == null) {
+            return null;
+        }
+        try {
+            final ByteArrayOutputStream result = new ByteArrayOutputStream();
+            final byte[] buf = new byte[10240];
+            int i;
+            while ((i = is.read(buf)) != -1) {
+                result.write(buf, 0, i);
+            }
+            return result.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Drops the prefetched resources that have not been read yet.
+     */
+    public void clearPrefetchedResources() {
+        for (final Iterator<Future<byte[]>> it = _prefetched.values().iterator(); it.hasNext(); ) {
+            it.next().cancel(false);
+            it.remove();
+        }
+    }
+
+    private static synchronized ThreadPoolExecutor getPrefetchExecutor() {
+        if (_prefetchExecutor == null) {
+            final int threads = Math.max(1, Configuration.valueAsInt("xr.load.prefetch-threads", DEFAULT_PREFETCH_THREADS));
+            _prefetchExecutor = new ThreadPoolExecutor(threads, threads, 10, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(final Runnable r) {
+                            final Thread thread = new Thread(r, "xr-prefetch");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            _prefetchExecutor.allowCoreThreadTimeOut(true);
+            XRLog.load(Level.FINE, "Prefetching resources on up to " + threads + " threads");
+        }
+        return _prefetchExecutor;
+    }
+
     /**
      * Retrieves the CSS located at the given URI.  It's assumed the URI does point to a CSS file--the URI will
      * be accessed (using java.io or java.net), opened, read and then passed into the CSS parser.
@@ -149,6 +351,9 @@ public class NaiveUserAgent implements UserAgentCallback, DocumentListener {
      * Retrieves the image located at the given URI. It's assumed the URI does point to an image--the URI will
      * be accessed (using java.io or java.net), opened, read and then passed into the JDK image-parsing routines.
      * The result is packed up into an ImageResource for later consumption.
+     * <p/>
+     * The images in the image cache are never changed, as the cache may be shared with other user agents; each
+     * call returns a new ImageResource whose image can be scaled without affecting the cached one.
      *
      * @param uri Location of the image source.
      * @return An ImageResource containing the image.
@@ -160,33 +365,41 @@ public class NaiveUserAgent implements UserAgentCallback, DocumentListener {
             ir = createImageResource(null, image);
         } else {
             uri = resolveURI(uri);
-            ir = _imageCache.get(uri);
-            //TODO: check that cached image is still valid
-            if (ir == null) {
-                final InputStream is = resolveAndOpenStream(uri);
-                if (is != null) {
-                    try {
-                        final BufferedImage img = ImageIO.read(is);
-                        if (img == null) {
-                            throw new IOException("ImageIO.read() returned null");
-                        }
-                        ir = createImageResource(uri, img);
-                        _imageCache.put(uri, ir);
-                    } catch (final FileNotFoundException e) {
-                        XRLog.exception("Can't read image file; image at URI '" + uri + "' not found");
-                    } catch (final IOException e) {
-                        XRLog.exception("Can't read image file; unexpected problem for URI '" + uri + "'", e);
-                    } finally {
-                        try {
-                            is.close();
-                        } catch (final IOException e) {
-                            // ignore
-                        }
-                    }
-                }
-            }
+            ir = _imageCache.getImage(uri, getValidator(uri), _imageLoader);
             if (ir == null) {
                 ir = createImageResource(uri, null);
+            } else {
+                ir = new ImageResource(ir.getImageUri(), AWTFSImage.createSharedImage(ir.getImage()));
+            }
+        }
+        return ir;
+    }
+
+    /**
+     * Reads and decodes the image at a resolved URI, for the image cache. May be called on a prefetch thread.
+     *
+     * @return An ImageResource containing the image, or null if it could not be read.
+     */
+    protected ImageResource loadImageResource(final String uri) {
+        ImageResource ir = null;
+        final InputStream is = resolveAndOpenStream(uri);
+        if (is != null) {
+            try {
+                final BufferedImage img = ImageIO.read(is);
+                if (img == null) {
+                    throw new IOException("ImageIO.read() returned null");
+                }
+                ir = createImageResource(uri, img);
+            } catch (final FileNotFoundException e) {
+                XRLog.exception("Can't read image file; image at URI '" + uri + "' not found");
+            } catch (final IOException e) {
+                XRLog.exception("Can't read image file; unexpected problem for URI '" + uri + "'", e);
+            } finally {
+                try {
+                    is.close();
+                } catch (final IOException e) {
+                    // ignore
+                }
             }
         }
         return ir;
@@ -326,7 +539,7 @@ public class NaiveUserAgent implements UserAgentCallback, DocumentListener {
 
     @Override
     public void documentStarted() {
-        shrinkImageCache();
+        clearPrefetchedResources();
     }
 
     @Override
@@ -342,4 +555,22 @@ public class NaiveUserAgent implements UserAgentCallback, DocumentListener {
 	public StylesheetCache getStylesheetCache() {
 		return _styleCache;
 	}
+
+    /**
+     * Uses the last modified time and length of local stylesheets to tell
+     * whether a cached stylesheet is still current.
+     */
+    @Override
+    public String getValidator(final String uri) {
+        return IOUtil.getFileValidator(uri);
+    }
+
+    /**
+     * Replaces the stylesheet cache, e.g. with
+     * {@link StylesheetCache#getSharedInstance()} to share parsed stylesheets
+     * with other user agents.
+     */
+    public void setStylesheetCache(final StylesheetCache styleCache) {
+        _styleCache = styleCache;
+    }
 }
@@ -1,40 +1,119 @@
 package org.xhtmlrenderer.swing;
 
-import java.util.Map;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.xhtmlrenderer.css.sheet.MediaRule;
+import org.xhtmlrenderer.css.sheet.PageRule;
+import org.xhtmlrenderer.css.sheet.PropertyDeclaration;
+import org.xhtmlrenderer.css.sheet.Ruleset;
 import org.xhtmlrenderer.css.sheet.Stylesheet;
 import org.xhtmlrenderer.css.sheet.StylesheetInfo;
-import org.xhtmlrenderer.util.XRLog;
+import org.xhtmlrenderer.util.Configuration;
+import org.xhtmlrenderer.util.ConcurrentLruCache;
 
+/**
+ * A cache of parsed stylesheets, keyed by URI. The cache is thread safe, so
+ * one instance may be plugged into any number of user agents, see
+ * {@link #getSharedInstance()}. It is bounded by the estimated size of the
+ * parsed sheets, and least recently used sheets are evicted first.
+ * <p/>
+ * A sheet may be cached together with a validator, a value such as a last
+ * modified time or ETag that changes when the resource changes. A lookup
+ * that passes a different validator does not return the cached sheet.
+ */
 public class StylesheetCache {
 	/**
-	 * an LRU cache
+	 * Supplies validators for stylesheet URIs. A {@link org.xhtmlrenderer.extend.UserAgentCallback}
+	 * that implements this has its cached stylesheets checked against it.
 	 */
-	private static final int DEFAULT_CSS_CACHE_SIZE = 64;
-	private final Map<String, Stylesheet> _cache = new java.util.LinkedHashMap<String, Stylesheet>(
-			DEFAULT_CSS_CACHE_SIZE, 0.75f, true) {
-		private static final long serialVersionUID = 1L;
-
-		protected boolean removeEldestEntry(
-				final java.util.Map.Entry<String, Stylesheet> eldest) {
-			return size() > DEFAULT_CSS_CACHE_SIZE;
+	public interface Validator {
+		/**
+		 * @return a value that changes whenever the resource at
+		 *         <code>uri</code> changes, e.g. its last modified time or ETag,
+		 *         or null if that is not known
+		 */
+		String getValidator(String uri);
+	}
+
+	/**
+	 * Rough sizes in bytes of the parsed parts of a stylesheet
+	 */
+	private static final int SHEET_SIZE = 256;
+	private static final int RULESET_SIZE = 64;
+	private static final int SELECTOR_SIZE = 96;
+	private static final int DECLARATION_SIZE = 128;
+
+	private static final long DEFAULT_MAX_SIZE =
+			Configuration.valueAsLong("xr.cache.stylesheets.max-size", 4L * 1024 * 1024);
+
+	private static final StylesheetCache _shared = new StylesheetCache();
+
+	private static final class Entry {
+		private final Stylesheet _sheet;
+		private final String _validator;
+		private final long _size;
+
+		private Entry(final Stylesheet sheet, final String validator) {
+			_sheet = sheet;
+			_validator = validator;
+			_size = estimateSize(sheet);
 		}
-	};
+	}
+
+	private final ConcurrentLruCache<String, Entry> _cache;
+	private final AtomicLong _invalidations = new AtomicLong();
+
+	/**
+	 * Creates a cache bounded by the <code>xr.cache.stylesheets.max-size</code>
+	 * configuration property.
+	 */
+	public StylesheetCache() {
+		this(DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * Creates a cache holding parsed stylesheets of an estimated
+	 * <code>maxSize</code> bytes at most.
+	 */
+	public StylesheetCache(final long maxSize) {
+		_cache = new ConcurrentLruCache<String, Entry>(maxSize, new ConcurrentLruCache.Weigher<String, Entry>() {
+			public long weigh(final String key, final Entry value) {
+				return value._size;
+			}
+		});
+	}
+
+	/**
+	 * @return a cache shared by all user agents that choose to use it
+	 */
+	public static StylesheetCache getSharedInstance() {
+		return _shared;
+	}
 
 	/**
 	 * Adds a stylesheet to the factory cache. Will overwrite older entry for
 	 * same key.
-	 * 
+	 *
 	 * @param key
 	 *            Key to use to reference sheet later; must be unique in
-	 *            factory.
+	 *            factory. Sheets without a key are not cached.
 	 * @param sheet
 	 *            The sheet to cache.
 	 */
 	public void putStylesheet(final String key, final Stylesheet sheet) {
-		XRLog.load("Receiving stylesheet for " + key);
-		
-		_cache.put(key, sheet);
+		putStylesheet(key, sheet, null);
+	}
+
+	/**
+	 * Adds a stylesheet to the cache, along with the validator of the
+	 * resource it was parsed from.
+	 */
+	public void putStylesheet(final String key, final Stylesheet sheet, final String validator) {
+		if (key == null) {
+			return;
+		}
+		_cache.put(key, new Entry(sheet, validator));
 	}
 
 	/**
@@ -43,36 +122,130 @@ public class StylesheetCache {
 	 *         Note that the Stylesheet may be null.
 	 */
 	public boolean containsStylesheet(final String key) {
-		return _cache.containsKey(key);
+		return key != null && _cache.containsKey(key);
 	}
 
 	/**
 	 * Returns a cached sheet by its key; null if no entry for that key.
-	 * 
+	 *
 	 * @param key
 	 *            The key for this sheet; same as key passed to putStylesheet();
 	 * @return The stylesheet
 	 */
 	public Stylesheet getStylesheet(final StylesheetInfo key) {
-		if (_cache.containsKey(key.getUri()))
-			XRLog.load("Stylesheet hit for " + key.getUri());
-		else
-			XRLog.load("Stylesheet miss for " + key.getUri());
-		
-		return _cache.get(key.getUri());
+		return getStylesheet(key, null);
+	}
+
+	/**
+	 * Returns a cached sheet by its key; null if there is no entry for that
+	 * key, or if the entry was cached with a validator other than
+	 * <code>validator</code>. A stale entry is removed.
+	 */
+	public Stylesheet getStylesheet(final StylesheetInfo key, final String validator) {
+		final String uri = key.getUri();
+		if (uri == null) {
+			return null;
+		}
+
+		final Entry entry = _cache.get(uri);
+		if (entry == null) {
+			return null;
+		}
+		if (validator != null && entry._validator != null && ! validator.equals(entry._validator)) {
+			_cache.remove(uri);
+			_invalidations.incrementAndGet();
+			return null;
+		}
+		return entry._sheet;
 	}
 
 	/**
 	 * Removes a cached sheet by its key.
-	 * 
+	 *
 	 * @param key
 	 *            The key for this sheet; same as key passed to putStylesheet();
 	 */
 	public Stylesheet removeCachedStylesheet(final String key) {
-		return _cache.remove(key);
+		if (key == null) {
+			return null;
+		}
+		final Entry entry = _cache.remove(key);
+		return entry == null ? null : entry._sheet;
 	}
 
 	public void flushCachedStylesheets() {
 		_cache.clear();
 	}
+
+	public int size() {
+		return _cache.size();
+	}
+
+	/**
+	 * @return the estimated size in bytes of the cached sheets
+	 */
+	public long getEstimatedSize() {
+		return _cache.getWeight();
+	}
+
+	public long getMaxSize() {
+		return _cache.getMaxWeight();
+	}
+
+	public long getHitCount() {
+		return _cache.getHitCount();
+	}
+
+	public long getMissCount() {
+		return _cache.getMissCount();
+	}
+
+	public long getEvictionCount() {
+		return _cache.getEvictionCount();
+	}
+
+	/**
+	 * @return how many cached sheets were dropped because their validator
+	 *         changed
+	 */
+	public long getInvalidationCount() {
+		return _invalidations.get();
+	}
+
+	public String toString() {
+		return _cache.toString() + ", invalidations=" + getInvalidationCount();
+	}
+
+	private static long estimateSize(final Stylesheet sheet) {
+		long size = SHEET_SIZE;
+		if (sheet == null) {
+			return size;
+		}
+		for (final Object obj : sheet.getContents()) {
+			if (obj instanceof Ruleset) {
+				size += estimateSize((Ruleset) obj);
+			} else if (obj instanceof MediaRule) {
+				for (final Ruleset ruleset : ((MediaRule) obj).getContents()) {
+					size += estimateSize(ruleset);
+				}
+			} else if (obj instanceof PageRule) {
+				final PageRule pageRule = (PageRule) obj;
+				size += estimateSize(pageRule.getRuleset());
+				for (final List<PropertyDeclaration> props : pageRule.getMarginBoxes().values()) {
+					size += RULESET_SIZE + props.size() * DECLARATION_SIZE;
+				}
+			}
+		}
+		size += sheet.getFontFaceRules().size() * RULESET_SIZE;
+		return size;
+	}
+
+	private static long estimateSize(final Ruleset ruleset) {
+		if (ruleset == null) {
+			return 0;
+		}
+		return RULESET_SIZE +
+				ruleset.getFSSelectors().size() * SELECTOR_SIZE +
+				ruleset.getPropertyDeclarations().size() * DECLARATION_SIZE;
+	}
 }
@@ -0,0 +1,134 @@
+/*
+ * {{{ header & license
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ * }}}
+ */
+package org.xhtmlrenderer.util;
+
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Decodes base 64 text as it is read, straight from a CharSequence such as a
+ * data URI, so the encoded text is never copied. Like
+ * {@link javax.xml.bind.DatatypeConverter#parseBase64Binary(String)},
+ * characters outside the base 64 alphabet are skipped and decoding stops at
+ * the first padding character.
+ */
+public class Base64InputStream extends InputStream {
+    private static final byte[] VALUES = new byte[128];
+
+    static {
+        Arrays.fill(VALUES, (byte) -1);
+        final String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++) {
+            VALUES[alphabet.charAt(i)] = (byte) i;
+        }
+    }
+
+    private final CharSequence _text;
+    private final int _end;
+    private int _pos;
+
+    /** Decoded bytes not read yet, the next one in the highest bits */
+    private int _buffer;
+    private int _buffered;
+
+    public Base64InputStream(final CharSequence text) {
+        this(text, 0, text.length());
+    }
+
+    /**
+     * Decodes <code>text</code> from <code>start</code> (inclusive) to
+     * <code>end</code> (exclusive).
+     */
+    public Base64InputStream(final CharSequence text, final int start, final int end) {
+        _text = text;
+        _pos = start;
+        _end = end;
+    }
+
+    /**
+     * @return the bytes encoded in <code>text</code> from <code>start</code>
+     *         to its end
+     */
+    public static byte[] decode(final CharSequence text, final int start) {
+        final Base64InputStream in = new Base64InputStream(text, start, text.length());
+        final byte[] result = new byte[(text.length() - start) / 4 * 3 + 2];
+        int length = 0;
+        int n;
+        while ((n = in.read(result, length, result.length - length)) > 0) {
+            length += n;
+        }
+        return length == result.length ? result : Arrays.copyOf(result, length);
+    }
+
+    public int read() {
+        if (_buffered == 0 && ! fill()) {
+            return -1;
+        }
+        _buffered--;
+        return (_buffer >>> (_buffered * 8)) & 0xff;
+    }
+
+    public int read(final byte[] b, final int off, final int len) {
+        if (len == 0) {
+            return 0;
+        }
+        int n = 0;
+        while (n < len) {
+            if (_buffered == 0 && ! fill()) {
+                break;
+            }
+            _buffered--;
+            b[off + n++] = (byte) (_buffer >>> (_buffered * 8));
+        }
+        return n == 0 ? -1 : n;
+    }
+
+    public int available() {
+        return _buffered + (_end - _pos) / 4 * 3;
+    }
+
+    /**
+     * Decodes the next group of up to four characters into up to three bytes.
+     *
+     * @return false at the end of the data
+     */
+    private boolean fill() {
+        int bits = 0;
+        int count = 0;
+        while (count < 4 && _pos < _end) {
+            final char c = _text.charAt(_pos++);
+            if (c == '=') {
+                _pos = _end;
+                break;
+            }
+            final int value = c < 128 ? VALUES[c] : -1;
+            if (value >= 0) {
+                bits = (bits << 6) | value;
+                count++;
+            }
+        }
+        if (count < 2) {
+            return false;
+        }
+        // Drop the bits that do not make up a whole byte
+        _buffered = count * 6 / 8;
+        _buffer = bits >>> (count * 6 - _buffered * 8);
+        return true;
+    }
+}
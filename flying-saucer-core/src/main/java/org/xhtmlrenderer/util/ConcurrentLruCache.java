@@ -0,0 +1,244 @@
+/*
+ * {{{ header & license
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ * }}}
+ */
+package org.xhtmlrenderer.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread safe cache bounded by the total weight of its entries. By default
+ * every entry weighs 1, so the cache is bounded by its number of entries.
+ * <p/>
+ * Lookups do not lock. Recency is tracked with a counter stamped on each
+ * entry when it is used, and when the total weight goes over the limit the
+ * least recently used entries are evicted until the cache is back down to
+ * three quarters of its limit. Eviction is the only operation that locks,
+ * and it only happens on inserts.
+ * <p/>
+ * Hit, miss and eviction counts are kept for monitoring.
+ */
+public class ConcurrentLruCache<K, V> {
+    /**
+     * Computes the weight of a cache entry, e.g. an estimate of its size in
+     * bytes.
+     */
+    public interface Weigher<K, V> {
+        long weigh(K key, V value);
+    }
+
+    private static final class Entry<V> {
+        private final V _value;
+        private final long _weight;
+        private volatile long _lastUsed;
+
+        private Entry(final V value, final long weight, final long lastUsed) {
+            _value = value;
+            _weight = weight;
+            _lastUsed = lastUsed;
+        }
+    }
+
+    private final ConcurrentHashMap<K, Entry<V>> _map = new ConcurrentHashMap<K, Entry<V>>();
+    private final long _maxWeight;
+    private final Weigher<K, V> _weigher;
+
+    private final AtomicLong _clock = new AtomicLong();
+    private final AtomicLong _weight = new AtomicLong();
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _evictions = new AtomicLong();
+
+    private final Object _evictionLock = new Object();
+
+    /**
+     * Creates a cache holding at most <code>maxEntries</code> entries.
+     */
+    public ConcurrentLruCache(final long maxEntries) {
+        this(maxEntries, null);
+    }
+
+    /**
+     * Creates a cache whose entries weigh at most <code>maxWeight</code> in
+     * total, as measured by <code>weigher</code>.
+     */
+    public ConcurrentLruCache(final long maxWeight, final Weigher<K, V> weigher) {
+        _maxWeight = maxWeight;
+        _weigher = weigher;
+    }
+
+    /**
+     * @return the cached value, or null if there is none
+     */
+    public V get(final K key) {
+        final Entry<V> entry = _map.get(key);
+        if (entry == null) {
+            _misses.incrementAndGet();
+            return null;
+        }
+        entry._lastUsed = _clock.incrementAndGet();
+        _hits.incrementAndGet();
+        return entry._value;
+    }
+
+    /**
+     * @return true if a value is cached for <code>key</code>. Does not count
+     *         as a hit or a miss.
+     */
+    public boolean containsKey(final K key) {
+        return _map.containsKey(key);
+    }
+
+    /**
+     * Caches <code>value</code>, replacing any value already cached for
+     * <code>key</code>. A value that is heavier than the whole cache is not
+     * cached.
+     */
+    public void put(final K key, final V value) {
+        final long weight = _weigher == null ? 1 : _weigher.weigh(key, value);
+        if (weight > _maxWeight) {
+            remove(key);
+            return;
+        }
+
+        final Entry<V> old = _map.put(key, new Entry<V>(value, weight, _clock.incrementAndGet()));
+        final long total = _weight.addAndGet(old == null ? weight : weight - old._weight);
+        if (total > _maxWeight) {
+            evict();
+        }
+    }
+
+    /**
+     * Caches <code>value</code> unless a value is already cached for
+     * <code>key</code>.
+     *
+     * @return the value now cached for <code>key</code>
+     */
+    public V putIfAbsent(final K key, final V value) {
+        final long weight = _weigher == null ? 1 : _weigher.weigh(key, value);
+        if (weight > _maxWeight) {
+            return value;
+        }
+
+        final Entry<V> old = _map.putIfAbsent(key, new Entry<V>(value, weight, _clock.incrementAndGet()));
+        if (old != null) {
+            return old._value;
+        }
+        if (_weight.addAndGet(weight) > _maxWeight) {
+            evict();
+        }
+        return value;
+    }
+
+    public V remove(final K key) {
+        final Entry<V> old = _map.remove(key);
+        if (old == null) {
+            return null;
+        }
+        _weight.addAndGet(-old._weight);
+        return old._value;
+    }
+
+    public void clear() {
+        synchronized (_evictionLock) {
+            for (final K key : new ArrayList<K>(_map.keySet())) {
+                remove(key);
+            }
+        }
+    }
+
+    public int size() {
+        return _map.size();
+    }
+
+    /**
+     * @return the total weight of the cached entries
+     */
+    public long getWeight() {
+        return _weight.get();
+    }
+
+    public long getMaxWeight() {
+        return _maxWeight;
+    }
+
+    public long getHitCount() {
+        return _hits.get();
+    }
+
+    public long getMissCount() {
+        return _misses.get();
+    }
+
+    public long getEvictionCount() {
+        return _evictions.get();
+    }
+
+    public String toString() {
+        return "size=" + size() + ", weight=" + getWeight() + "/" + _maxWeight +
+                ", hits=" + getHitCount() + ", misses=" + getMissCount() +
+                ", evictions=" + getEvictionCount();
+    }
+
+    private void evict() {
+        synchronized (_evictionLock) {
+            if (_weight.get() <= _maxWeight) {
+                return;
+            }
+
+            // Snapshot the use stamps, they keep changing while we sort
+            final List<Candidate<K, V>> candidates = new ArrayList<Candidate<K, V>>(_map.size());
+            for (final Map.Entry<K, Entry<V>> e : _map.entrySet()) {
+                candidates.add(new Candidate<K, V>(e.getKey(), e.getValue()));
+            }
+            Collections.sort(candidates, new Comparator<Candidate<K, V>>() {
+                public int compare(final Candidate<K, V> c1, final Candidate<K, V> c2) {
+                    return c1._lastUsed < c2._lastUsed ? -1 : (c1._lastUsed == c2._lastUsed ? 0 : 1);
+                }
+            });
+
+            final long target = _maxWeight - _maxWeight / 4;
+            for (final Candidate<K, V> c : candidates) {
+                if (_weight.get() <= target) {
+                    break;
+                }
+                if (_map.remove(c._key, c._entry)) {
+                    _weight.addAndGet(-c._entry._weight);
+                    _evictions.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    private static final class Candidate<K, V> {
+        private final K _key;
+        private final Entry<V> _entry;
+        private final long _lastUsed;
+
+        private Candidate(final K key, final Entry<V> entry) {
+            _key = key;
+            _entry = entry;
+            _lastUsed = entry._lastUsed;
+        }
+    }
+}
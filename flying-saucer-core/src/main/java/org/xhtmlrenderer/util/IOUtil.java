@@ -1,6 +1,7 @@
 package org.xhtmlrenderer.util;
 
 import java.io.*;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLConnection;
 
@@ -92,4 +93,25 @@ public class IOUtil {
         return is;
 
     }
+
+    /**
+     * Returns the last modified time and length of the file <code>uri</code>
+     * points to, as a stand-in for an HTTP validator such as an ETag. Returns
+     * null if <code>uri</code> is not a file URI or the file does not exist.
+     */
+    public static String getFileValidator(final String uri) {
+        if (uri == null || ! uri.startsWith("file:")) {
+            return null;
+        }
+        try {
+            final File file = new File(new URL(uri).toURI());
+            final long lastModified = file.lastModified();
+            if (lastModified == 0) {
+                return null;
+            }
+            return lastModified + ":" + file.length();
+        } catch (final IOException | URISyntaxException | IllegalArgumentException e) {
+            return null;
+        }
+    }
 }
@@ -21,15 +21,21 @@ package org.xhtmlrenderer.util;
 
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.EnumMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.logging.Level;
 import javax.imageio.ImageIO;
-import javax.xml.bind.DatatypeConverter;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 
 import org.imgscalr.Scalr;
 
@@ -43,6 +49,24 @@ public class ImageUtil {
 
     private static final Map<DownscaleQuality, Scaler> qual;
 
+    private static final String BASE64_MARKER = "base64,";
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * Embedded images decoded so far, by {@link #getEmbeddedImageKey(String)}
+     */
+    private static final ConcurrentLruCache<String, BufferedImage> _embeddedImages =
+            new ConcurrentLruCache<String, BufferedImage>(
+                    Configuration.valueAsLong("xr.cache.embedded-images.max-size", 8L * 1024 * 1024),
+                    new ConcurrentLruCache.Weigher<String, BufferedImage>() {
+                public long weigh(final String key, final BufferedImage value) {
+                    final DataBuffer buffer = value.getRaster().getDataBuffer();
+                    return (long) buffer.getSize() * buffer.getNumBanks() *
+                            DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+                }
+            });
+
     static {
         qual = new EnumMap<>(DownscaleQuality.class);
         qual.put(DownscaleQuality.FAST, ScalerInstance.FastScaler);
@@ -279,40 +303,188 @@ public class ImageUtil {
     }
     
     /**
-     * Get the binary content of an embedded base 64 image.
+     * Get the binary content of an embedded base 64 image. The data is
+     * decoded straight from the URI, without copying it.
      *
      * @param imageDataUri URI of the embedded image
      * @return The binary content
      */
     public static byte[] getEmbeddedBase64Image(final String imageDataUri) {
-        final int b64Index = imageDataUri.indexOf("base64,");
+        final int b64Index = imageDataUri.indexOf(BASE64_MARKER);
         if (b64Index != -1) {
-            final String b64encoded = imageDataUri.substring(b64Index + "base64,".length());
-            return DatatypeConverter.parseBase64Binary(b64encoded);
+            return Base64InputStream.decode(imageDataUri, b64Index + BASE64_MARKER.length());
         } else {
             XRLog.load(Level.SEVERE, "Embedded XHTML images must be encoded in base 64.");
         }
         return null;
     }
-    
+
     /**
-     * Get the BufferedImage of an embedded base 64 image.
+     * Get a key identifying an embedded image by its content. Identical data
+     * URIs have the same key, so the key may be used to cache what is decoded
+     * from them; it is much shorter than the URI itself.
+     *
+     * @param imageDataUri URI of the embedded image
+     * @return The key, which starts with "data:"
+     */
+    public static String getEmbeddedImageKey(final String imageDataUri) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new XRRuntimeException("SHA-1 is not available", e);
+        }
+
+        final byte[] chunk = new byte[8192];
+        int n = 0;
+        for (int i = 0; i < imageDataUri.length(); i++) {
+            final char c = imageDataUri.charAt(i);
+            if (n + 3 > chunk.length) {
+                digest.update(chunk, 0, n);
+                n = 0;
+            }
+            // UTF-8, though data URIs are nearly always ASCII
+            if (c < 0x80) {
+                chunk[n++] = (byte) c;
+            } else if (c < 0x800) {
+                chunk[n++] = (byte) (0xc0 | (c >> 6));
+                chunk[n++] = (byte) (0x80 | (c & 0x3f));
+            } else {
+                chunk[n++] = (byte) (0xe0 | (c >> 12));
+                chunk[n++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                chunk[n++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        digest.update(chunk, 0, n);
+
+        final byte[] hash = digest.digest();
+        final StringBuilder key = new StringBuilder("data:sha-1,");
+        for (final byte b : hash) {
+            key.append(HEX_DIGITS[(b >> 4) & 0xf]).append(HEX_DIGITS[b & 0xf]);
+        }
+        return key.append(',').append(imageDataUri.length()).toString();
+    }
+
+    /**
+     * Get the BufferedImage of an embedded base 64 image. Images are decoded
+     * once and cached by their content, so identical data URIs share the same
+     * image, which must not be drawn on.
      *
      * @param imageDataUri URI of the embedded image
      * @return The BufferedImage
      */
     public static BufferedImage loadEmbeddedBase64Image(final String imageDataUri) {
+        final String key = getEmbeddedImageKey(imageDataUri);
+        BufferedImage image = _embeddedImages.get(key);
+        if (image != null) {
+            return image;
+        }
+
+        final int b64Index = imageDataUri.indexOf(BASE64_MARKER);
+        if (b64Index == -1) {
+            XRLog.load(Level.SEVERE, "Embedded XHTML images must be encoded in base 64.");
+            return null;
+        }
         try {
-            final byte[] buffer = getEmbeddedBase64Image(imageDataUri);
-            if (buffer != null) {
-                return ImageIO.read(new ByteArrayInputStream(buffer));
+            image = ImageIO.read(new Base64InputStream(imageDataUri,
+                    b64Index + BASE64_MARKER.length(), imageDataUri.length()));
+            if (image != null) {
+                _embeddedImages.put(key, image);
             }
+            return image;
         } catch (final IOException ex) {
             XRLog.exception("Can't read XHTML embedded image", ex);
         }
         return null;
     }
     
+    /**
+     * Re-encodes an image at a lower resolution, for output that does not
+     * need all of its pixels. The image is subsampled while it is decoded, so
+     * the full size image is never held in memory, and then scaled to its
+     * target size with the <code>xr.image.scale</code> quality. Opaque images
+     * are encoded as JPEG at <code>quality</code>, others as PNG.
+     *
+     * @param data encoded image
+     * @param width width in pixels the image is needed at
+     * @param height height in pixels the image is needed at
+     * @param quality JPEG quality, between 0 and 1
+     * @return the smaller image encoded, or null if the image could not be
+     *         read, is no larger than needed, or would not be smaller
+     *         re-encoded
+     */
+    public static byte[] downsampleImage(final byte[] data, final int width, final int height, final float quality) {
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+
+        BufferedImage img;
+        ImageInputStream iis = null;
+        ImageReader reader = null;
+        try {
+            iis = ImageIO.createImageInputStream(new ByteArrayInputStream(data));
+            final Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            reader = readers.next();
+            reader.setInput(iis, true, true);
+
+            final int srcWidth = reader.getWidth(0);
+            final int srcHeight = reader.getHeight(0);
+            if (srcWidth <= width && srcHeight <= height) {
+                return null;
+            }
+
+            // Keep twice the pixels needed, so scaling can smooth out what
+            // skipping pixels leaves jagged
+            final int step = Math.max(1, Math.min(srcWidth / (2 * width), srcHeight / (2 * height)));
+            final ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceSubsampling(step, step, 0, 0);
+            img = reader.read(0, param);
+        } catch (final IOException e) {
+            XRLog.load(Level.WARNING, "Can't downsample image: " + e.getMessage());
+            return null;
+        } catch (final RuntimeException e) {
+            // Image readers throw these on some malformed or unusual images
+            XRLog.load(Level.WARNING, "Can't downsample image: " + e);
+            return null;
+        } finally {
+            if (reader != null) {
+                reader.dispose();
+            }
+            if (iis != null) {
+                try {
+                    iis.close();
+                } catch (final IOException e) {
+                    // ignore
+                }
+            }
+        }
+
+        img = getScaledInstance(img, Math.min(width, img.getWidth()), Math.min(height, img.getHeight()));
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4);
+        try {
+            if (img.getColorModel().hasAlpha()) {
+                new FSImageWriter("png").write(img, out);
+            } else {
+                if (img.getType() != BufferedImage.TYPE_INT_RGB && img.getType() != BufferedImage.TYPE_BYTE_GRAY) {
+                    final BufferedImage rgb = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_INT_RGB);
+                    final Graphics2D g = rgb.createGraphics();
+                    g.drawImage(img, 0, 0, null);
+                    g.dispose();
+                    img = rgb;
+                }
+                FSImageWriter.newJpegWriter(quality).write(img, out);
+            }
+        } catch (final IOException e) {
+            XRLog.load(Level.WARNING, "Can't encode downsampled image: " + e.getMessage());
+            return null;
+        }
+        return out.size() < data.length ? out.toByteArray() : null;
+    }
+
     interface Scaler {
         /**
          * Convenience method that returns a scaled instance of the
@@ -0,0 +1,259 @@
+/*
+ * {{{ header & license
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ * }}}
+ */
+
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+import org.xhtmlrenderer.pdf.ITextRenderer;
+import org.xhtmlrenderer.pdf.ITextUserAgent;
+import org.xhtmlrenderer.util.FSImageWriter;
+import org.xhtmlrenderer.util.ImageUtil;
+
+
+/**
+ * Checks the size and quality of images downsampled for PDF output. A
+ * 6000x4000 JPEG and a 2000x1500 PNG with an alpha channel are generated and
+ * shown 200px wide, and the check fails if
+ * <ul>
+ * <li>{@link ImageUtil#downsampleImage(byte[], int, int, float)} does not
+ * return a smaller JPEG or PNG of the requested size, within
+ * {@link #MIN_PSNR} dB of the full image decoded and scaled by area
+ * averaging, or</li>
+ * <li>the PDF written at 150 and 300 dpi is not at most
+ * {@link #MAX_RATIO_150} and {@link #MAX_RATIO_300} of the size of the PDF
+ * that embeds the images as they are, or</li>
+ * <li>an image is read more than once per PDF.</li>
+ * </ul>
+ * The PSNR of the PNG is measured on colors multiplied by alpha, as the
+ * color of a transparent pixel does not show.
+ * The bounds leave some room above what the check measured with iText
+ * 4.2.1 on JDK 17: 43.8 dB for the JPEG, 53.2 dB for the PNG, and PDFs of
+ * 2.1% and 5.6% of the full size.
+ * <p/>
+ * Decoding the full JPEG takes about 100 MB of heap.
+ * <pre>
+ * java -Xmx512m ImageDownsamplingCheck
+ * </pre>
+ */
+public class ImageDownsamplingCheck {
+    private static final double MIN_PSNR = 40;
+    private static final double MAX_RATIO_150 = 0.03;
+    private static final double MAX_RATIO_300 = 0.08;
+
+    private static final float QUALITY = 0.85f;
+
+    private static int _failures;
+
+    public static void main(final String[] args) throws Exception {
+        final byte[] jpeg = encode(createImage(6000, 4000, false), "jpg");
+        final byte[] png = encode(createImage(2000, 1500, true), "png");
+
+        // 200px at 150 dpi
+        checkDownsample("JPEG", jpeg, 313, 209, false);
+        checkDownsample("PNG", png, 313, 235, true);
+
+        final File dir = File.createTempFile("downsample", "");
+        if (! dir.delete() || ! dir.mkdir()) {
+            throw new IOException("Could not create " + dir);
+        }
+        dir.deleteOnExit();
+        write(new File(dir, "photo.jpg"), jpeg);
+        write(new File(dir, "overlay.png"), png);
+
+        final int full = render(dir, 0);
+        final int at150 = render(dir, 150);
+        final int at300 = render(dir, 300);
+        System.out.println("PDF size: " + full / 1024 + " KB as is, " + at150 / 1024 + " KB at 150 dpi, " +
+                at300 / 1024 + " KB at 300 dpi");
+        check("PDF size at 150 dpi", at150 <= full * MAX_RATIO_150);
+        check("PDF size at 300 dpi", at300 <= full * MAX_RATIO_300);
+        check("PDF at 150 dpi smaller than at 300 dpi", at150 < at300);
+
+        if (_failures > 0) {
+            System.err.println(_failures + " checks failed");
+            System.exit(1);
+        }
+        System.out.println("All checks passed");
+    }
+
+    private static void checkDownsample(final String name, final byte[] data, final int width, final int height,
+            final boolean alpha) throws IOException {
+        final byte[] result = ImageUtil.downsampleImage(data, width, height, QUALITY);
+        if (result == null) {
+            check(name + " downsampled", false);
+            return;
+        }
+        final boolean isPng = result[0] == (byte) 0x89 && result[1] == 'P';
+        final boolean isJpeg = result[0] == (byte) 0xFF && result[1] == (byte) 0xD8;
+        check(name + " encoded as " + (alpha ? "PNG" : "JPEG"), alpha ? isPng : isJpeg);
+        check(name + " smaller than its source", result.length < data.length);
+
+        final BufferedImage actual = ImageIO.read(new ByteArrayInputStream(result));
+        check(name + " downsampled to " + width + "x" + height,
+                actual.getWidth() == width && actual.getHeight() == height);
+        if (actual.getWidth() != width || actual.getHeight() != height) {
+            return;
+        }
+
+        final BufferedImage source = ImageIO.read(new ByteArrayInputStream(data));
+        final Image scaled = source.getScaledInstance(width, height, Image.SCALE_AREA_AVERAGING);
+        final BufferedImage expected = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        final Graphics2D g = expected.createGraphics();
+        g.drawImage(scaled, 0, 0, null);
+        g.dispose();
+
+        final double psnr = psnr(expected, actual, alpha);
+        System.out.println(name + ": " + data.length / 1024 + " KB downsampled to " + result.length / 1024 +
+                " KB, " + String.format("%.1f", psnr) + " dB PSNR");
+        check(name + " PSNR of at least " + MIN_PSNR + " dB", psnr >= MIN_PSNR);
+    }
+
+    /**
+     * @return the size of the PDF showing both images 200px wide
+     */
+    private static int render(final File dir, final int dpi) throws Exception {
+        final String html = "<html><body>" +
+                "<p><img src='photo.jpg' style='width: 200px' /></p>" +
+                "<p><img src='overlay.png' style='width: 200px' /></p>" +
+                "</body></html>";
+        final ITextRenderer renderer = new ITextRenderer();
+        final CountingUserAgent uac = new CountingUserAgent(renderer);
+        uac.setSharedContext(renderer.getSharedContext());
+        renderer.getSharedContext().setUserAgentCallback(uac);
+        renderer.setImageResolution(dpi);
+        renderer.setImageQuality(QUALITY);
+        renderer.setDocumentFromString(html, dir.toURI().toURL().toString());
+        renderer.layout();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        renderer.createPDF(out);
+        check("images read once at " + dpi + " dpi", uac._opens.get() == 2);
+        return out.size();
+    }
+
+    /**
+     * A smooth picture with some grain, like a photograph, so that it does
+     * not compress unusually well.
+     */
+    private static BufferedImage createImage(final int width, final int height, final boolean alpha) {
+        final BufferedImage image = new BufferedImage(width, height,
+                alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        final int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        final Random random = new Random(42);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                final double u = (double) x / width;
+                final double v = (double) y / height;
+                final int grain = alpha ? 0 : random.nextInt(9) - 4;
+                final int r = clamp(128 + 100 * Math.sin(6 * u + 2 * v) + grain);
+                final int gr = clamp(128 + 100 * Math.sin(5 * v - 3 * u) + grain);
+                final int b = clamp(128 + 100 * Math.cos(4 * (u + v)) + grain);
+                final int a = alpha ? clamp(255 * (1 - Math.abs(2 * u - 1))) : 255;
+                pixels[y * width + x] = a << 24 | r << 16 | gr << 8 | b;
+            }
+        }
+        return image;
+    }
+
+    private static int clamp(final double value) {
+        return (int) Math.max(0, Math.min(255, Math.round(value)));
+    }
+
+    private static double psnr(final BufferedImage expected, final BufferedImage actual, final boolean alpha) {
+        final int channels = alpha ? 4 : 3;
+        double sum = 0;
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                final int p = expected.getRGB(x, y);
+                final int q = actual.getRGB(x, y);
+                for (int c = 0; c < channels; c++) {
+                    final double d = premultiply(p, c) - premultiply(q, c);
+                    sum += d * d;
+                }
+            }
+        }
+        final double mse = sum / ((double) expected.getWidth() * expected.getHeight() * channels);
+        return mse == 0 ? Double.POSITIVE_INFINITY : 10 * Math.log10(255 * 255 / mse);
+    }
+
+    /**
+     * @return channel <code>c</code> of an ARGB pixel, 3 being alpha,
+     *         multiplied by alpha
+     */
+    private static double premultiply(final int argb, final int c) {
+        final int value = (argb >>> (8 * c)) & 0xFF;
+        return c == 3 ? value : value * (argb >>> 24) / 255.0;
+    }
+
+    private static byte[] encode(final BufferedImage image, final String format) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if ("jpg".equals(format)) {
+            FSImageWriter.newJpegWriter(0.95f).write(image, out);
+        } else {
+            new FSImageWriter(format).write(image, out);
+        }
+        return out.toByteArray();
+    }
+
+    private static void write(final File file, final byte[] data) throws IOException {
+        file.deleteOnExit();
+        final OutputStream os = new FileOutputStream(file);
+        try {
+            os.write(data);
+        } finally {
+            os.close();
+        }
+    }
+
+    private static void check(final String what, final boolean ok) {
+        if (! ok) {
+            System.err.println("FAILED " + what);
+            _failures++;
+        }
+    }
+
+    /**
+     * Counts the files it opens.
+     */
+    private static class CountingUserAgent extends ITextUserAgent {
+        private final AtomicInteger _opens = new AtomicInteger();
+
+        CountingUserAgent(final ITextRenderer renderer) {
+            super(renderer.getOutputDevice());
+        }
+
+        @Override
+        protected InputStream openStream(final String uri) {
+            _opens.incrementAndGet();
+            return super.openStream(uri);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * {{{ header & license
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ * }}}
+ */
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.xhtmlrenderer.pdf.ITextRenderer;
+
+
+/**
+ * Times PDF layout, which is mostly line breaking, of the documents in a
+ * directory, by default <code>tests/profiling/xhtml</code>. Every document is
+ * laid out as is, and then again with its paragraphs squeezed into narrow
+ * columns, which is where line breaking used to get slow.
+ * <pre>
+ * java LineBreakingBenchmark [directory] [runs]
+ * </pre>
+ */
+public class LineBreakingBenchmark {
+    private static final int[] COLUMN_WIDTHS = { 0, 300, 120 };
+
+    public static void main(final String[] args) throws IOException {
+        final File dir = new File(args.length > 0 ? args[0] : "tests/profiling/xhtml");
+        final int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        final File[] files = dir.listFiles(new FileFilter() {
+            public boolean accept(final File f) {
+                return f.getName().endsWith(".xhtml") || f.getName().endsWith(".html");
+            }
+        });
+        if (files == null || files.length == 0) {
+            System.err.println("No documents found in " + dir.getAbsolutePath());
+            System.exit(1);
+        }
+        Arrays.sort(files);
+
+        for (final File file : files) {
+            for (final int width : COLUMN_WIDTHS) {
+                // The first run warms up the JIT and the caches
+                layout(file, width);
+
+                long total = 0;
+                long best = Long.MAX_VALUE;
+                for (int i = 0; i < runs; i++) {
+                    final long time = layout(file, width);
+                    total += time;
+                    best = Math.min(best, time);
+                }
+                System.out.println(file.getName() + " " +
+                        (width == 0 ? "page width" : width + "px columns") +
+                        ": average " + total / runs / 1000000 + " ms, best " + best / 1000000 + " ms");
+            }
+        }
+    }
+
+    /**
+     * @return how long layout took, in nanoseconds
+     */
+    private static long layout(final File file, final int columnWidth) throws IOException {
+        final Document doc = Jsoup.parse(file, "UTF-8", file.toURI().toString());
+        if (columnWidth > 0) {
+            doc.head().append("<style>p, td, li, div { max-width: " + columnWidth + "px }</style>");
+        }
+
+        final ITextRenderer renderer = new ITextRenderer();
+        renderer.setDocument(doc, file.toURI().toString());
+
+        final long start = System.nanoTime();
+        renderer.layout();
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * {{{ header & license
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ * }}}
+ */
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.xhtmlrenderer.css.sheet.Stylesheet;
+import org.xhtmlrenderer.pdf.ITextRenderer;
+import org.xhtmlrenderer.pdf.ITextUserAgent;
+import org.xhtmlrenderer.resource.ResourceDiscovery;
+import org.xhtmlrenderer.simple.HtmlNamespaceHandler;
+
+
+/**
+ * Checks that resources are prefetched before layout. A document with a
+ * linked stylesheet, an imported one, images, a style attribute
+ * <code>url()</code>, a stylesheet background and a web font is written to a
+ * temporary directory and rendered to PDF through a user agent that stands in
+ * for a slow server: every file it opens takes <code>latency</code>
+ * milliseconds, and it counts how often each file is opened.
+ * <p/>
+ * The check fails unless every resource is discovered, every resource is
+ * read exactly once with and without prefetching, and a stylesheet whose
+ * prefetch fails is still loaded by opening it again. The render times with
+ * and without prefetching are printed.
+ * <pre>
+ * java ResourcePrefetchCheck [latency]
+ * </pre>
+ */
+public class ResourcePrefetchCheck {
+    private static final int IMAGES = 20;
+
+    private static int _failures;
+
+    public static void main(final String[] args) throws Exception {
+        final int latency = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        // Prefetching is off by default; the user agent below skips it for the serial render
+        System.setProperty("xr.load.prefetch", "true");
+
+        final File dir = createDocument();
+        final String base = dir.toURI().toURL().toString();
+        final String page = new File(dir, "page.html").toURI().toURL().toString();
+
+        final List<String> expected = Arrays.asList(
+                "page.html", "main.css", "imported.css", "deep.css", "bg.png", "sheetbg.png", "font.ttf");
+        final Document doc = Jsoup.parse(new File(dir, "page.html"), "UTF-8", page);
+        final HtmlNamespaceHandler nsh = new HtmlNamespaceHandler();
+        check("stylesheets found", ResourceDiscovery.findStylesheets(doc, nsh, "print"),
+                Arrays.asList("main.css", "imported.css"));
+        check("image count", ResourceDiscovery.findImages(doc, nsh).size(), IMAGES + 1);
+        check("style attribute url() found", ResourceDiscovery.findImages(doc, nsh).contains("bg.png"), true);
+
+        // The first run warms up the JIT and the font caches
+        render(page, base, latency, true, null);
+
+        long start = System.nanoTime();
+        final CountingUserAgent serial = render(page, base, latency, false, null);
+        final long serialTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        final CountingUserAgent prefetched = render(page, base, latency, true, null);
+        final long prefetchTime = System.nanoTime() - start;
+
+        final List<Stylesheet> sheets = prefetched._renderer.getSharedContext().getCss().getParsedStylesheets();
+        check("font face source found", ResourceDiscovery.findFontFaceSources(sheets),
+                Arrays.asList(base + "font.ttf"));
+        check("stylesheet image found", ResourceDiscovery.findStylesheetImages(sheets, "print"),
+                Arrays.asList(base + "sheetbg.png"));
+
+        for (final String name : expected) {
+            check("requests for " + name + " without prefetching", serial.getRequests(base + name), 1);
+            check("requests for " + name + " with prefetching", prefetched.getRequests(base + name), 1);
+        }
+        for (int i = 0; i < IMAGES; i++) {
+            check("requests for img" + i + ".png", prefetched.getRequests(base + "img" + i + ".png"), 1);
+        }
+        check("total requests", prefetched.getTotalRequests(), serial.getTotalRequests());
+        check("total requests", prefetched.getTotalRequests(), expected.size() + IMAGES);
+
+        // A failed prefetch is read again when the stylesheet is parsed
+        final CountingUserAgent failing = render(page, base, latency, true, base + "main.css");
+        check("requests for main.css after a failed prefetch", failing.getRequests(base + "main.css"), 2);
+        check("requests for deep.css after a failed prefetch", failing.getRequests(base + "deep.css"), 1);
+        boolean haveMain = false;
+        for (final Stylesheet sheet : failing._renderer.getSharedContext().getCss().getParsedStylesheets()) {
+            if ((base + "main.css").equals(sheet.getURI()) && ! sheet.getContents().isEmpty()) {
+                haveMain = true;
+            }
+        }
+        check("main.css parsed after a failed prefetch", haveMain, true);
+
+        System.out.println(prefetched.getTotalRequests() + " requests at " + latency + " ms latency: " +
+                serialTime / 1000000 + " ms without prefetching, " + prefetchTime / 1000000 + " ms with prefetching");
+        if (_failures > 0) {
+            System.err.println(_failures + " checks failed");
+            System.exit(1);
+        }
+        System.out.println("All checks passed");
+    }
+
+    private static CountingUserAgent render(final String page, final String base, final int latency,
+            final boolean prefetch, final String failOnce) throws Exception {
+        final ITextRenderer renderer = new ITextRenderer();
+        final CountingUserAgent uac = new CountingUserAgent(renderer, base, latency, prefetch, failOnce);
+        uac.setSharedContext(renderer.getSharedContext());
+        renderer.getSharedContext().setUserAgentCallback(uac);
+
+        renderer.setDocument(page);
+        renderer.layout();
+        renderer.createPDF(new ByteArrayOutputStream());
+        return uac;
+    }
+
+    private static void check(final String what, final Object actual, final Object expected) {
+        if (! expected.equals(actual)) {
+            System.err.println("FAILED " + what + ": expected " + expected + ", got " + actual);
+            _failures++;
+        }
+    }
+
+    private static File createDocument() throws IOException {
+        final File dir = File.createTempFile("prefetch", "");
+        if (! dir.delete() || ! dir.mkdir()) {
+            throw new IOException("Could not create " + dir);
+        }
+        dir.deleteOnExit();
+
+        final StringBuilder html = new StringBuilder();
+        html.append("<html><head>");
+        html.append("<link rel='stylesheet' type='text/css' href='main.css' />");
+        html.append("<style>@import \"imported.css\";</style>");
+        html.append("</head><body>");
+        html.append("<div style=\"background-image: url('bg.png'); height: 20px\"></div>");
+        for (int i = 0; i < IMAGES; i++) {
+            html.append("<p>Image ").append(i).append(" <img src='img").append(i).append(".png' /></p>");
+        }
+        html.append("</body></html>");
+        write(dir, "page.html", html.toString());
+
+        write(dir, "main.css", "@import url(deep.css);\n" +
+                "@font-face { font-family: Probe; src: url(font.ttf); -fs-pdf-font-embed: embed }\n" +
+                "body { background-image: url(sheetbg.png); font-family: Probe, serif }\n");
+        write(dir, "imported.css", "p { margin: 2px }\n");
+        write(dir, "deep.css", "div { border: 1px solid black }\n");
+
+        writeImage(dir, "bg.png", Color.YELLOW);
+        writeImage(dir, "sheetbg.png", Color.WHITE);
+        for (int i = 0; i < IMAGES; i++) {
+            writeImage(dir, "img" + i + ".png", new Color(i * 12, 80, 255 - i * 12));
+        }
+
+        // Any TrueType font will do, only its requests are counted
+        final InputStream is = ResourcePrefetchCheck.class.getResourceAsStream("/demos/fonts/fuzz.ttf");
+        if (is == null) {
+            throw new IOException("demos/fonts/fuzz.ttf is not on the class path");
+        }
+        final OutputStream os = new FileOutputStream(new File(dir, "font.ttf"));
+        try {
+            final byte[] buf = new byte[10240];
+            int i;
+            while ((i = is.read(buf)) != -1) {
+                os.write(buf, 0, i);
+            }
+        } finally {
+            is.close();
+            os.close();
+        }
+        new File(dir, "font.ttf").deleteOnExit();
+
+        return dir;
+    }
+
+    private static void write(final File dir, final String name, final String content) throws IOException {
+        final File file = new File(dir, name);
+        file.deleteOnExit();
+        final Writer w = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            w.write(content);
+        } finally {
+            w.close();
+        }
+    }
+
+    private static void writeImage(final File dir, final String name, final Color color) throws IOException {
+        final BufferedImage image = new BufferedImage(64, 32, BufferedImage.TYPE_INT_RGB);
+        final Graphics2D g = image.createGraphics();
+        g.setColor(color);
+        g.fillRect(0, 0, 64, 32);
+        g.dispose();
+        final File file = new File(dir, name);
+        file.deleteOnExit();
+        ImageIO.write(image, "png", file);
+    }
+
+    /**
+     * Stands in for a slow server: opening a file under <code>base</code>
+     * waits for <code>latency</code> milliseconds and is counted. The first
+     * read of <code>failOnce</code> fails.
+     */
+    private static class CountingUserAgent extends ITextUserAgent {
+        private final String _base;
+        private final int _latency;
+        private final boolean _prefetch;
+        private final ConcurrentMap<String, AtomicInteger> _requests = new ConcurrentHashMap<String, AtomicInteger>();
+        private volatile String _failOnce;
+
+        private final ITextRenderer _renderer;
+
+        CountingUserAgent(final ITextRenderer renderer, final String base, final int latency,
+                final boolean prefetch, final String failOnce) {
+            super(renderer.getOutputDevice());
+            _renderer = renderer;
+            _base = base;
+            _latency = latency;
+            _prefetch = prefetch;
+            _failOnce = failOnce;
+        }
+
+        @Override
+        protected InputStream openStream(final String uri) {
+            if (uri == null || ! uri.startsWith(_base)) {
+                return super.openStream(uri);
+            }
+
+            AtomicInteger count = _requests.get(uri);
+            if (count == null) {
+                _requests.putIfAbsent(uri, new AtomicInteger());
+                count = _requests.get(uri);
+            }
+            count.incrementAndGet();
+
+            try {
+                Thread.sleep(_latency);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            if (uri.equals(_failOnce)) {
+                _failOnce = null;
+                return new InputStream() {
+                    @Override
+                    public int read() throws IOException {
+                        throw new IOException("Connection reset");
+                    }
+                };
+            }
+            return super.openStream(uri);
+        }
+
+        @Override
+        public void prefetch(final Collection<String> uris) {
+            if (_prefetch) {
+                super.prefetch(uris);
+            }
+        }
+
+        @Override
+        public void prefetchStylesheets(final Collection<String> uris) {
+            if (_prefetch) {
+                super.prefetchStylesheets(uris);
+            }
+        }
+
+        @Override
+        public void prefetchImages(final Collection<String> uris) {
+            if (_prefetch) {
+                super.prefetchImages(uris);
+            }
+        }
+
+        int getRequests(final String uri) {
+            final AtomicInteger count = _requests.get(uri);
+            return count == null ? 0 : count.get();
+        }
+
+        int getTotalRequests() {
+            int total = 0;
+            for (final AtomicInteger count : _requests.values()) {
+                total += count.get();
+            }
+            return total;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * {{{ header & license
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.	See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ * }}}
+ */
+package org.xhtmlrenderer.pdf;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.logging.Level;
+
+import org.xhtmlrenderer.css.constants.IdentValue;
+import org.xhtmlrenderer.pdf.ITextFontResolver.FontDescription;
+import org.xhtmlrenderer.util.Configuration;
+import org.xhtmlrenderer.util.XRLog;
+
+/**
+ * A file that remembers the family names, style, weight and line metrics of
+ * TrueType fonts, keyed by path, so that adding a font directory does not have
+ * to open every font in it on every start. An entry is only used while the
+ * font file has the size and modification time it had when it was indexed.
+ * <p/>
+ * The index is off unless the <code>xr.fonts.index.file</code> configuration
+ * property names the file to keep it in. An index that cannot be read or
+ * written is ignored.
+ */
+final class FontIndex {
+    private static final String VERSION_KEY = "fs.index.version";
+    private static final String VERSION = "1";
+
+    private static final char SEPARATOR = '\t';
+
+    private static FontIndex _instance;
+
+    private final File _file;
+    private final Properties _entries = new Properties();
+    private boolean _dirty;
+
+    /**
+     * What the index knows about one font
+     */
+    static final class Entry {
+        private final String[] _familyNames;
+        private final IdentValue _style;
+        private final int _weight;
+        private final float _underlinePosition;
+        private final float _underlineThickness;
+        private final float _yStrikeoutSize;
+        private final float _yStrikeoutPosition;
+
+        Entry(final String[] familyNames, final FontDescription descr) {
+            this(familyNames, descr.getStyle(), descr.getWeight(),
+                    descr.getUnderlinePosition(), descr.getUnderlineThickness(),
+                    descr.getYStrikeoutSize(), descr.getYStrikeoutPosition());
+        }
+
+        private Entry(final String[] familyNames, final IdentValue style, final int weight,
+                final float underlinePosition, final float underlineThickness,
+                final float yStrikeoutSize, final float yStrikeoutPosition) {
+            _familyNames = familyNames;
+            _style = style;
+            _weight = weight;
+            _underlinePosition = underlinePosition;
+            _underlineThickness = underlineThickness;
+            _yStrikeoutSize = yStrikeoutSize;
+            _yStrikeoutPosition = yStrikeoutPosition;
+        }
+
+        String[] getFamilyNames() {
+            return _familyNames;
+        }
+
+        /**
+         * @return a description of the indexed font that only loads the font
+         *         when it is first used
+         */
+        FontDescription createFontDescription(final String path, final String encoding, final boolean embedded) {
+            final FontDescription descr = new FontDescription(path, encoding, embedded, _style, _weight);
+            descr.setUnderlinePosition(_underlinePosition);
+            descr.setUnderlineThickness(_underlineThickness);
+            descr.setYStrikeoutSize(_yStrikeoutSize);
+            descr.setYStrikeoutPosition(_yStrikeoutPosition);
+            return descr;
+        }
+    }
+
+    private FontIndex(final File file) {
+        _file = file;
+    }
+
+    /**
+     * @return the index, or null if it is turned off
+     */
+    static synchronized FontIndex getInstance() {
+        if (_instance == null) {
+            final String path = Configuration.valueFor("xr.fonts.index.file", "").trim();
+            if (path.length() == 0) {
+                return null;
+            }
+            _instance = new FontIndex(new File(path));
+            _instance.load();
+        }
+        return _instance;
+    }
+
+    /**
+     * @return the entry for the font at <code>path</code>, or null if the font
+     *         is not indexed or has changed since
+     */
+    synchronized Entry get(final String path) {
+        final String value = _entries.getProperty(path);
+        if (value == null) {
+            return null;
+        }
+
+        final String[] fields = value.split(String.valueOf(SEPARATOR));
+        if (fields.length < 8 || ! fields[0].equals(getFileKey(path))) {
+            return null;
+        }
+        try {
+            final String[] familyNames = new String[fields.length - 7];
+            System.arraycopy(fields, 7, familyNames, 0, familyNames.length);
+            return new Entry(familyNames,
+                    IdentValue.getByIdentString(fields[1]), Integer.parseInt(fields[2]),
+                    Float.parseFloat(fields[3]), Float.parseFloat(fields[4]),
+                    Float.parseFloat(fields[5]), Float.parseFloat(fields[6]));
+        } catch (final RuntimeException e) {
+            return null;
+        }
+    }
+
+    synchronized void put(final String path, final Entry entry) {
+        final StringBuilder value = new StringBuilder();
+        value.append(getFileKey(path));
+        value.append(SEPARATOR).append(entry._style.asString());
+        value.append(SEPARATOR).append(entry._weight);
+        value.append(SEPARATOR).append(entry._underlinePosition);
+        value.append(SEPARATOR).append(entry._underlineThickness);
+        value.append(SEPARATOR).append(entry._yStrikeoutSize);
+        value.append(SEPARATOR).append(entry._yStrikeoutPosition);
+        for (final String familyName : entry._familyNames) {
+            if (familyName.indexOf(SEPARATOR) != -1) {
+                return;
+            }
+            value.append(SEPARATOR).append(familyName);
+        }
+        _entries.setProperty(path, value.toString());
+        _dirty = true;
+    }
+
+    /**
+     * Writes the index if entries were added since it was last read or
+     * written.
+     */
+    synchronized void save() {
+        if (! _dirty) {
+            return;
+        }
+        _dirty = false;
+
+        final File dir = _file.getAbsoluteFile().getParentFile();
+        if (dir != null && ! dir.isDirectory() && ! dir.mkdirs()) {
+            XRLog.load(Level.WARNING, "Could not create directory for font index " + _file);
+            return;
+        }
+
+        // Write to a temporary file first, so a reader never sees half an index
+        File temp = null;
+        OutputStream out = null;
+        try {
+            temp = File.createTempFile("fonts", ".index", dir);
+            out = new FileOutputStream(temp);
+            _entries.setProperty(VERSION_KEY, VERSION);
+            _entries.store(out, "Flying Saucer font index");
+            out.close();
+            out = null;
+            if (! temp.renameTo(_file) && ! (_file.delete() && temp.renameTo(_file))) {
+                throw new IOException("Could not rename " + temp + " to " + _file);
+            }
+            temp = null;
+        } catch (final IOException e) {
+            XRLog.load(Level.WARNING, "Could not write font index " + _file, e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (final IOException e) {
+                    // ignore
+                }
+            }
+            if (temp != null) {
+                temp.delete();
+            }
+        }
+    }
+
+    private void load() {
+        if (! _file.isFile()) {
+            return;
+        }
+
+        InputStream in = null;
+        try {
+            in = new FileInputStream(_file);
+            _entries.load(in);
+            if (! VERSION.equals(_entries.getProperty(VERSION_KEY))) {
+                _entries.clear();
+            }
+        } catch (final IOException e) {
+            XRLog.load(Level.WARNING, "Could not read font index " + _file, e);
+            _entries.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (final IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the size and modification time of the file holding the font
+     *         at <code>path</code>
+     */
+    private static String getFileKey(final String path) {
+        final int idx = path.toLowerCase().indexOf(".ttc,");
+        final File file = new File(idx == -1 ? path : path.substring(0, idx + 4));
+        return file.length() + ":" + file.lastModified();
+    }
+}
@@ -21,10 +21,20 @@ package org.xhtmlrenderer.pdf;
 
 import org.xhtmlrenderer.pdf.ITextFontResolver.FontDescription;
 import org.xhtmlrenderer.render.FSFont;
+import org.xhtmlrenderer.render.FSFontMetrics;
 
+import com.lowagie.text.pdf.BaseFont;
+
+/**
+ * A font at a size. {@link ITextFontResolver} hands out one instance per
+ * description and size, see {@link FontDescription#getFSFont(float)}, so the
+ * metrics computed here are shared too.
+ */
 public class ITextFSFont implements FSFont {
     private final FontDescription _font;
     private final float _size;
+
+    private volatile FSFontMetrics _metrics;
     
     public ITextFSFont(final FontDescription font, final float size) {
         _font = font;
@@ -38,4 +48,35 @@ public class ITextFSFont implements FSFont {
     public FontDescription getFontDescription() {
         return _font;
     }
+
+    /**
+     * @return the metrics of this font, computed on first use
+     */
+    public FSFontMetrics getFSFontMetrics() {
+        FSFontMetrics result = _metrics;
+        if (result == null) {
+            result = createFSFontMetrics();
+            _metrics = result;
+        }
+        return result;
+    }
+
+    private FSFontMetrics createFSFontMetrics() {
+        final BaseFont bf = _font.getFont();
+        final ITextFSFontMetrics result = new ITextFSFontMetrics();
+        result.setAscent(bf.getFontDescriptor(BaseFont.BBOXURY, _size));
+        result.setDescent(-bf.getFontDescriptor(BaseFont.BBOXLLY, _size));
+        
+        result.setStrikethroughOffset(-_font.getYStrikeoutPosition() / 1000f * _size);
+        if (_font.getYStrikeoutSize() != 0) {
+            result.setStrikethroughThickness(_font.getYStrikeoutSize() / 1000f * _size);
+        } else {
+            result.setStrikethroughThickness(_size / 12.0f);
+        }
+        
+        result.setUnderlineOffset(-_font.getUnderlinePosition() / 1000f * _size);
+        result.setUnderlineThickness(_font.getUnderlineThickness() / 1000f * _size);
+        
+        return result;
+    }
 }
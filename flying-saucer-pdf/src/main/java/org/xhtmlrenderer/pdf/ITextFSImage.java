@@ -23,19 +23,32 @@ import org.xhtmlrenderer.extend.FSImage;
 
 import com.lowagie.text.Image;
 
+/**
+ * An iText image at the size it is drawn at. The underlying {@link Image} is
+ * never changed, so one may be shared by any number of ITextFSImages, and is
+ * then written to the PDF only once; scaling changes only this wrapper.
+ */
 public class ITextFSImage implements FSImage, Cloneable {
     private final Image _image;
+    private float _width;
+    private float _height;
 
     public ITextFSImage(final Image image) {
+        this(image, image.getPlainWidth(), image.getPlainHeight());
+    }
+
+    public ITextFSImage(final Image image, final float width, final float height) {
         _image = image;
+        _width = width;
+        _height = height;
     }
 
     public int getWidth() {
-        return (int)_image.getPlainWidth();
+        return (int)_width;
     }
 
     public int getHeight() {
-        return (int)_image.getPlainHeight();
+        return (int)_height;
     }
 
     public void scale(final int width, final int height) {
@@ -54,16 +67,31 @@ public class ITextFSImage implements FSImage, Cloneable {
             }
 
             if (currentWith != targetWidth || currentHeight != targetHeight) {
-                _image.scaleAbsolute(targetWidth, targetHeight);
+                _width = targetWidth;
+                _height = targetHeight;
             }
         }
     }
 
+    /**
+     * @return the shared image, which must not be changed
+     */
     public Image getImage() {
         return _image;
     }
 
+    /**
+     * @return an ITextFSImage of the same size drawing <code>image</code>
+     *         instead, such as a downsampled copy of this image
+     */
+    public ITextFSImage withImage(final Image image) {
+        return new ITextFSImage(image, _width, _height);
+    }
+
+    /**
+     * @return an ITextFSImage of the same size sharing this image
+     */
     public Object clone() {
-        return new ITextFSImage(Image.getInstance(_image));
+        return new ITextFSImage(_image, _width, _height);
     }
 }
@@ -36,9 +36,31 @@ import org.xhtmlrenderer.util.XRRuntimeException;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 public class ITextFontResolver implements FontResolver {
-    private Map<String, FontFamily> _fontFamilies = createInitialFontMap();
+    /**
+     * The base 14 and CJK font families, created once and shared by all
+     * resolvers in the JVM. Shared families are never modified.
+     */
+    private static volatile Map<String, FontFamily> _sharedFontFamilies;
+
+    /**
+     * The descriptions, by family name, of every font file added through
+     * {@link #addFont(String, String, String, boolean, String)}, parsed once
+     * and shared by all resolvers in the JVM. Shared descriptions are never
+     * modified.
+     */
+    private static final ConcurrentMap<String, Map<String, FontDescription>> _sharedFonts =
+            new ConcurrentHashMap<String, Map<String, FontDescription>>();
+
+    /**
+     * The families this resolver added fonts to, including @font-face fonts.
+     * These hide the shared families of the same name.
+     */
+    private Map<String, FontFamily> _fontFamilies = new HashMap<String, FontFamily>();
     private Map<String, FontDescription> _fontCache = new HashMap<String, FontDescription>();
 
     private final SharedContext _sharedContext;
@@ -81,10 +103,19 @@ public class ITextFontResolver implements FontResolver {
     }
 
     public void flushCache() {
-        _fontFamilies = createInitialFontMap();
+        _fontFamilies = new HashMap<String, FontFamily>();
         _fontCache = new HashMap<String, FontDescription>();
     }
 
+    /**
+     * Drops the font files parsed by all resolvers, so they are parsed again
+     * the next time they are added. Resolvers keep the fonts they already
+     * added.
+     */
+    public static void flushSharedFonts() {
+        _sharedFonts.clear();
+    }
+
     public void flushFontFaceFonts() {
         _fontCache = new HashMap<String, FontDescription>();
 
@@ -163,8 +194,9 @@ public class ITextFontResolver implements FontResolver {
                 }
             });
             for (final File file : files) {
-                addFont(file.getAbsolutePath(), embedded);
+                addFontFile(file.getAbsolutePath(), null, BaseFont.CP1252, embedded, null);
             }
+            saveFontIndex();
         }
     }
 
@@ -186,33 +218,87 @@ public class ITextFontResolver implements FontResolver {
     public void addFont(final String path, final String fontFamilyNameOverride,
                         final String encoding, final boolean embedded, final String pathToPFB)
             throws DocumentException, IOException {
+        addFontFile(path, fontFamilyNameOverride, encoding, embedded, pathToPFB);
+        saveFontIndex();
+    }
+
+    private void addFontFile(final String path, final String fontFamilyNameOverride,
+            final String encoding, final boolean embedded, final String pathToPFB)
+            throws DocumentException, IOException {
         final String lower = path.toLowerCase();
-        if (lower.endsWith(".otf") || lower.endsWith(".ttf") || lower.indexOf(".ttc,") != -1) {
-            final BaseFont font = BaseFont.createFont(path, encoding, embedded);
+        if (lower.endsWith(".ttc")) {
+            final String[] names = BaseFont.enumerateTTCNames(path);
+            for (int i = 0; i < names.length; i++) {
+                addFontFile(path + "," + i, fontFamilyNameOverride, encoding, embedded, null);
+            }
+            return;
+        }
 
-            String[] fontFamilyNames;
-            if (fontFamilyNameOverride != null) {
-                fontFamilyNames = new String[] { fontFamilyNameOverride };
-            } else {
-                fontFamilyNames = TrueTypeUtil.getFamilyNames(font);
+        final String key = createSharedFontKey(path, fontFamilyNameOverride, encoding, embedded, pathToPFB);
+        Map<String, FontDescription> descriptions = _sharedFonts.get(key);
+        if (descriptions == null) {
+            descriptions = parseFont(path, fontFamilyNameOverride, encoding, embedded, pathToPFB);
+            final Map<String, FontDescription> existing = _sharedFonts.putIfAbsent(key, descriptions);
+            if (existing != null) {
+                descriptions = existing;
             }
+        }
 
-            for (final String fontFamilyName : fontFamilyNames) {
-                final FontFamily fontFamily = getFontFamily(fontFamilyName);
+        for (final Map.Entry<String, FontDescription> entry : descriptions.entrySet()) {
+            getFontFamily(entry.getKey()).addFontDescription(entry.getValue());
+        }
+    }
 
-                final FontDescription descr = new FontDescription(font);
+    /**
+     * The key of a font file among the shared fonts. A file that changed
+     * since it was parsed gets a new key.
+     */
+    private static String createSharedFontKey(final String path, final String fontFamilyNameOverride,
+            final String encoding, final boolean embedded, final String pathToPFB) {
+        final int ttcIndex = path.toLowerCase().indexOf(".ttc,");
+        final File file = new File(ttcIndex == -1 ? path : path.substring(0, ttcIndex + 4));
+        return path + '\n' + fontFamilyNameOverride + '\n' + encoding + '\n' + embedded + '\n' +
+                pathToPFB + '\n' + file.lastModified() + '\n' + file.length();
+    }
+
+    /**
+     * @return the descriptions of the font at <code>path</code>, by family name
+     */
+    private Map<String, FontDescription> parseFont(final String path, final String fontFamilyNameOverride,
+            final String encoding, final boolean embedded, final String pathToPFB)
+            throws DocumentException, IOException {
+        final Map<String, FontDescription> result = new LinkedHashMap<String, FontDescription>();
+        final String lower = path.toLowerCase();
+        if (lower.endsWith(".otf") || lower.endsWith(".ttf") || lower.indexOf(".ttc,") != -1) {
+            // An indexed font is not opened until a family match selects it
+            final FontIndex index = FontIndex.getInstance();
+            final FontIndex.Entry entry = index == null ? null : index.get(path);
+
+            FontDescription descr;
+            String[] fontFamilyNames;
+            if (entry != null) {
+                descr = entry.createFontDescription(path, encoding, embedded);
+                fontFamilyNames = entry.getFamilyNames();
+            } else {
+                final BaseFont font = BaseFont.createFont(path, encoding, embedded);
+                descr = new FontDescription(font);
                 try {
                     TrueTypeUtil.populateDescription(path, font, descr);
                 } catch (final Exception e) {
                     throw new XRRuntimeException(e.getMessage(), e);
                 }
+                fontFamilyNames = TrueTypeUtil.getFamilyNames(font);
+                if (index != null) {
+                    index.put(path, new FontIndex.Entry(fontFamilyNames, descr));
+                }
+            }
 
-                fontFamily.addFontDescription(descr);
+            if (fontFamilyNameOverride != null) {
+                fontFamilyNames = new String[] { fontFamilyNameOverride };
             }
-        } else if (lower.endsWith(".ttc")) {
-            final String[] names = BaseFont.enumerateTTCNames(path);
-            for (int i = 0; i < names.length; i++) {
-                addFont(path + "," + i, fontFamilyNameOverride, encoding, embedded, null);
+
+            for (final String fontFamilyName : fontFamilyNames) {
+                result.put(fontFamilyName, descr);
             }
         } else if (lower.endsWith(".afm") || lower.endsWith(".pfm")) {
             if (embedded && pathToPFB == null) {
@@ -229,16 +315,15 @@ public class ITextFontResolver implements FontResolver {
                 fontFamilyName = font.getFamilyFontName()[0][3];
             }
 
-            final FontFamily fontFamily = getFontFamily(fontFamilyName);
-
             final FontDescription descr = new FontDescription(font);
             // XXX Need to set weight, underline position, etc.  This information
             // is contained in the AFM file (and even parsed by Type1Font), but
             // unfortunately it isn't exposed to the caller.
-            fontFamily.addFontDescription(descr);
+            result.put(fontFamilyName, descr);
         } else {
             throw new IOException("Unsupported font type");
         }
+        return Collections.unmodifiableMap(result);
     }
 
     private void addFontFaceFont(
@@ -322,16 +407,41 @@ public class ITextFontResolver implements FontResolver {
         }
     }
 
+    private static void saveFontIndex() {
+        final FontIndex index = FontIndex.getInstance();
+        if (index != null) {
+            index.save();
+        }
+    }
+
+    /**
+     * Returns this resolver's own family of the given name, to add fonts to.
+     * A shared family of that name is copied first.
+     */
     public FontFamily getFontFamily(final String fontFamilyName) {
         FontFamily fontFamily = _fontFamilies.get(fontFamilyName);
         if (fontFamily == null) {
             fontFamily = new FontFamily();
             fontFamily.setName(fontFamilyName);
+            final FontFamily shared = getSharedFontFamilies().get(fontFamilyName);
+            if (shared != null) {
+                for (final FontDescription descr : shared.getFontDescriptions()) {
+                    fontFamily.addFontDescription(descr);
+                }
+            }
             _fontFamilies.put(fontFamilyName, fontFamily);
         }
         return fontFamily;
     }
 
+    private FontFamily findFontFamily(final String fontFamilyName) {
+        final FontFamily fontFamily = _fontFamilies.get(fontFamilyName);
+        if (fontFamily != null) {
+            return fontFamily;
+        }
+        return getSharedFontFamilies().get(fontFamilyName);
+    }
+
     private FSFont resolveFont(final SharedContext ctx, final String[] families, final float size, final IdentValue weight, IdentValue style, final IdentValue variant) {
         if (! (style == IdentValue.NORMAL || style == IdentValue.OBLIQUE
                 || style == IdentValue.ITALIC)) {
@@ -379,15 +489,15 @@ public class ITextFontResolver implements FontResolver {
         final String cacheKey = getHashName(normalizedFontFamily, weight, style);
         FontDescription result = _fontCache.get(cacheKey);
         if (result != null) {
-            return new ITextFSFont(result, size);
+            return result.getFSFont(size);
         }
 
-        final FontFamily family = _fontFamilies.get(normalizedFontFamily);
+        final FontFamily family = findFontFamily(normalizedFontFamily);
         if (family != null) {
             result = family.match(convertWeightToInt(weight), style);
             if (result != null) {
                 _fontCache.put(cacheKey, result);
-                return new ITextFSFont(result, size);
+                return result.getFSFont(size);
             }
         }
 
@@ -432,6 +542,20 @@ public class ITextFontResolver implements FontResolver {
         return name + "-" + weight + "-" + style;
     }
 
+    private static Map<String, FontFamily> getSharedFontFamilies() {
+        Map<String, FontFamily> result = _sharedFontFamilies;
+        if (result == null) {
+            synchronized (ITextFontResolver.class) {
+                result = _sharedFontFamilies;
+                if (result == null) {
+                    result = Collections.unmodifiableMap(createInitialFontMap());
+                    _sharedFontFamilies = result;
+                }
+            }
+        }
+        return result;
+    }
+
     private static Map<String, FontFamily> createInitialFontMap() {
         final HashMap<String, FontFamily> result = new HashMap<String, FontFamily>();
 
@@ -705,11 +829,26 @@ public class ITextFontResolver implements FontResolver {
         }
     }
 
+    /**
+     * A font face within a family. Descriptions of the base fonts and of font
+     * files are shared by all resolvers and must not be modified once they
+     * have been added to a family.
+     */
     public static class FontDescription {
+        /**
+         * How many sizes of a font {@link #getFSFont(float)} keeps
+         */
+        private static final int MAX_FS_FONTS = 64;
+
         private IdentValue _style;
         private int _weight;
 
-        private BaseFont _font;
+        private volatile BaseFont _font;
+
+        // Where to load the font from if it is only loaded when first used
+        private String _fontPath;
+        private String _encoding;
+        private boolean _embedded;
 
         private float _underlinePosition;
         private float _underlineThickness;
@@ -719,6 +858,17 @@ public class ITextFontResolver implements FontResolver {
 
         private boolean _isFromFontFace;
 
+        // Glyph advances in 1/1000 em, filled in a page of 256 chars at a
+        // time. Supplementary characters are kept in a map.
+        private volatile AtomicReferenceArray<int[]> _widthPages;
+        private volatile ConcurrentMap<Integer, Integer> _supplementaryWidths;
+
+        // A bit per char that is set if the font has a glyph for it, filled
+        // in a page of 256 chars at a time
+        private volatile AtomicReferenceArray<long[]> _coveragePages;
+
+        private volatile ConcurrentMap<Float, ITextFSFont> _fsFonts;
+
         public FontDescription() {
         }
 
@@ -733,12 +883,143 @@ public class ITextFontResolver implements FontResolver {
             setMetricDefaults();
         }
 
+        /**
+         * Describes the font at <code>path</code> without loading it. The
+         * font is loaded by the first call to {@link #getFont()}, and the
+         * caller must set the line metrics.
+         */
+        FontDescription(final String path, final String encoding, final boolean embedded,
+                final IdentValue style, final int weight) {
+            _fontPath = path;
+            _encoding = encoding;
+            _embedded = embedded;
+            _style = style;
+            _weight = weight;
+        }
+
         public BaseFont getFont() {
-            return _font;
+            BaseFont font = _font;
+            if (font == null && _fontPath != null) {
+                synchronized (this) {
+                    font = _font;
+                    if (font == null) {
+                        try {
+                            font = BaseFont.createFont(_fontPath, _encoding, _embedded);
+                        } catch (final Exception e) {
+                            throw new XRRuntimeException("Could not load font " + _fontPath, e);
+                        }
+                        _font = font;
+                    }
+                }
+            }
+            return font;
         }
 
         public void setFont(final BaseFont font) {
             _font = font;
+            _widthPages = null;
+            _supplementaryWidths = null;
+            _coveragePages = null;
+            _fsFonts = null;
+        }
+
+        /**
+         * @return this font at <code>size</code>. The same instance is
+         *         returned for the same size, up to {@link #MAX_FS_FONTS}
+         *         sizes.
+         */
+        public ITextFSFont getFSFont(final float size) {
+            ConcurrentMap<Float, ITextFSFont> fsFonts = _fsFonts;
+            if (fsFonts == null) {
+                fsFonts = new ConcurrentHashMap<Float, ITextFSFont>();
+                _fsFonts = fsFonts;
+            }
+
+            final Float key = size;
+            ITextFSFont result = fsFonts.get(key);
+            if (result == null) {
+                result = new ITextFSFont(this, size);
+                if (fsFonts.size() < MAX_FS_FONTS) {
+                    final ITextFSFont existing = fsFonts.putIfAbsent(key, result);
+                    if (existing != null) {
+                        result = existing;
+                    }
+                }
+            }
+            return result;
+        }
+
+        /**
+         * @return the advance of <code>c</code> in 1/1000 em, as
+         *         {@link BaseFont#getWidth(String)} counts it
+         */
+        public int getWidth(final char c) {
+            AtomicReferenceArray<int[]> pages = _widthPages;
+            if (pages == null) {
+                pages = new AtomicReferenceArray<int[]>(256);
+                _widthPages = pages;
+            }
+
+            int[] page = pages.get(c >>> 8);
+            if (page == null) {
+                // Published only once complete, so readers never see a
+                // partly filled page
+                final BaseFont font = getFont();
+                final char first = (char) (c & 0xff00);
+                page = new int[256];
+                for (int i = 0; i < 256; i++) {
+                    page[i] = font.getWidth(String.valueOf((char) (first + i)));
+                }
+                pages.set(c >>> 8, page);
+            }
+            return page[c & 0xff];
+        }
+
+        /**
+         * @return the advance of the surrogate pair <code>high</code>,
+         *         <code>low</code> in 1/1000 em, as
+         *         {@link BaseFont#getWidth(String)} counts it
+         */
+        public int getWidth(final char high, final char low) {
+            ConcurrentMap<Integer, Integer> widths = _supplementaryWidths;
+            if (widths == null) {
+                widths = new ConcurrentHashMap<Integer, Integer>();
+                _supplementaryWidths = widths;
+            }
+
+            final Integer codePoint = Character.toCodePoint(high, low);
+            Integer result = widths.get(codePoint);
+            if (result == null) {
+                result = getFont().getWidth(new String(new char[] { high, low }));
+                widths.put(codePoint, result);
+            }
+            return result;
+        }
+
+        /**
+         * @return true if the font has a glyph for <code>c</code>, as
+         *         {@link BaseFont#charExists(int)} tells
+         */
+        public boolean charExists(final char c) {
+            AtomicReferenceArray<long[]> pages = _coveragePages;
+            if (pages == null) {
+                pages = new AtomicReferenceArray<long[]>(256);
+                _coveragePages = pages;
+            }
+
+            long[] page = pages.get(c >>> 8);
+            if (page == null) {
+                final BaseFont font = getFont();
+                final char first = (char) (c & 0xff00);
+                page = new long[4];
+                for (int i = 0; i < 256; i++) {
+                    if (font.charExists(first + i)) {
+                        page[i >>> 6] |= 1L << (i & 63);
+                    }
+                }
+                pages.set(c >>> 8, page);
+            }
+            return (page[(c & 0xff) >>> 6] & (1L << (c & 63))) != 0;
         }
 
         public int getWeight() {
@@ -43,10 +43,12 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.logging.Level;
 import java.util.regex.Pattern;
 
@@ -84,6 +86,7 @@ import org.xhtmlrenderer.util.XRRuntimeException;
 
 import com.lowagie.text.DocumentException;
 import com.lowagie.text.Image;
+import com.lowagie.text.pdf.BaseFont;
 import com.lowagie.text.pdf.CMYKColor;
 import com.lowagie.text.pdf.PdfAction;
 import com.lowagie.text.pdf.PdfAnnotation;
@@ -125,6 +128,16 @@ public class ITextOutputDevice extends AbstractOutputDevice implements OutputDev
     private PdfContentByte _currentPage;
     private float _pageHeight;
 
+    // The text object drawString keeps open across consecutive runs of text.
+    // It must be closed before anything but text, colour or graphics state
+    // parameters is written to the page.
+    private boolean _inText;
+    private BaseFont _textFont;
+    private float _textFontSize;
+    private boolean _textTranslated;
+    private double _textX;
+    private double _textY;
+
     private ITextFSFont _font;
 
     private AffineTransform _transform = new AffineTransform();
@@ -151,6 +164,8 @@ public class ITextOutputDevice extends AbstractOutputDevice implements OutputDev
 
     private final List<Bookmark> _bookmarks = new ArrayList<Bookmark>();
 
+    private PdfArray _namedDestinations;
+
     private final List<Metadata> _metadata = new ArrayList<Metadata>();
 
     private Box _root;
@@ -163,8 +178,17 @@ public class ITextOutputDevice extends AbstractOutputDevice implements OutputDev
     
     private boolean haveOpacity = false;
 
+    private final boolean _replaceMissingCharacters;
+    private final char _missingCharacterReplacement;
+
+    // How often each missing character was replaced, by font
+    private final Map<FontDescription, Map<Character, int[]>> _missingCharacters =
+            new LinkedHashMap<FontDescription, Map<Character, int[]>>();
+
     public ITextOutputDevice(final float dotsPerPoint) {
         _dotsPerPoint = dotsPerPoint;
+        _replaceMissingCharacters = Configuration.isTrue("xr.renderer.replace-missing-characters", false);
+        _missingCharacterReplacement = Configuration.valueAsChar("xr.renderer.missing-character-replacement", '#');
     }
 
     public void setWriter(final PdfWriter writer) {
@@ -182,6 +206,7 @@ public class ITextOutputDevice extends AbstractOutputDevice implements OutputDev
     public void initializePage(final PdfContentByte currentPage, final float height) {
         _currentPage = currentPage;
         _pageHeight = height;
+        _inText = false;
 
         _currentPage.saveState();
 
@@ -203,6 +228,7 @@ public class ITextOutputDevice extends AbstractOutputDevice implements OutputDev
     }
 
     public void finishPage() {
+        endText();
         _currentPage.restoreState();
     }
 
@@ -483,29 +509,34 @@ public class ITextOutputDevice extends AbstractOutputDevice implements OutputDev
     }
 
     public void drawString(String s, final float x, final float y, final JustificationInfo info) {
-        if (Configuration.isTrue("xr.renderer.replace-missing-characters", false)) {
+        if (_replaceMissingCharacters) {
             s = replaceMissingCharacters(s);
         }
         if (s.length() == 0)
             return;
         final PdfContentByte cb = _currentPage;
         ensureFillColor();
-        final AffineTransform at = (AffineTransform) getTransform().clone();
-        at.translate(x, y);
-        final AffineTransform inverse = normalizeMatrix(at);
-        final AffineTransform flipper = AffineTransform.getScaleInstance(1, -1);
-        inverse.concatenate(flipper);
-        inverse.scale(_dotsPerPoint, _dotsPerPoint);
-        final double[] mx = new double[6];
-        inverse.getMatrix(mx);
-        cb.beginText();
+
+        // The current transform, moved to (x, y), flipped to PDF space and
+        // scaled back up to points
+        final AffineTransform t = getTransform();
+        final double e = t.getScaleX() * x + t.getShearX() * y + t.getTranslateX();
+        final double f = _pageHeight - (t.getShearY() * x + t.getScaleY() * y + t.getTranslateY());
+        final float a = (float) (t.getScaleX() * _dotsPerPoint);
+        float b = (float) (-t.getShearY() * _dotsPerPoint);
+        float c = (float) (-t.getShearX() * _dotsPerPoint);
+        final float d = (float) (t.getScaleY() * _dotsPerPoint);
+
+        beginText();
         // Check if bold or italic need to be emulated
         boolean resetMode = false;
         final FontDescription desc = _font.getFontDescription();
         final float fontSize = _font.getSize2D() / _dotsPerPoint;
-        cb.setFontAndSize(desc.getFont(), fontSize);
-        float b = (float) mx[1];
-        float c = (float) mx[2];
+        if (desc.getFont() != _textFont || fontSize != _textFontSize) {
+            cb.setFontAndSize(desc.getFont(), fontSize);
+            _textFont = desc.getFont();
+            _textFontSize = fontSize;
+        }
         final FontSpecification fontSpec = getFontSpecification();
         if (fontSpec != null) {
             final int need = ITextFontResolver.convertWeightToInt(fontSpec.fontWeight);
@@ -521,7 +552,7 @@ public class ITextOutputDevice extends AbstractOutputDevice implements OutputDev
                 c = 0.21256f;
             }
         }
-        cb.setTextMatrix((float) mx[0], b, c, (float) mx[3], (float) mx[4], (float) mx[5]);
+        setTextMatrix(cb, a, b, c, d, e, f);
         if (info == null) {
             cb.showText(s);
         } else {
@@ -532,51 +563,151 @@ public class ITextOutputDevice extends AbstractOutputDevice implements OutputDev
             cb.setTextRenderingMode(PdfContentByte.TEXT_RENDER_MODE_FILL);
             cb.setLineWidth(1);
         }
-        cb.endText();
+    }
+
+    private void beginText() {
+        if (! _inText) {
+            _currentPage.beginText();
+            _inText = true;
+            _textFont = null;
+            _textTranslated = false;
+        }
+    }
+
+    private void endText() {
+        if (_inText) {
+            _currentPage.endText();
+            _inText = false;
+        }
+    }
+
+    /**
+     * Positions the next run of text. When neither this run nor the last one
+     * is scaled, sheared or rotated, the run is positioned relative to the
+     * last one, which takes less space than a full text matrix. Positions are
+     * rounded the way they are written, so relative moves do not drift.
+     */
+    private void setTextMatrix(final PdfContentByte cb, final float a, final float b, final float c, final float d,
+            final double e, final double f) {
+        final double x = roundTextPosition(e);
+        final double y = roundTextPosition(f);
+        final boolean translated = Math.abs(a - 1) < 0.000005f && Math.abs(b) < 0.000005f &&
+                Math.abs(c) < 0.000005f && Math.abs(d - 1) < 0.000005f;
+        if (translated && _textTranslated) {
+            cb.moveText((float) (x - _textX), (float) (y - _textY));
+        } else {
+            cb.setTextMatrix(a, b, c, d, (float) x, (float) y);
+        }
+        _textTranslated = translated;
+        _textX = x;
+        _textY = y;
+    }
+
+    /**
+     * @return <code>v</code> rounded to the two decimals iText writes
+     *         coordinates with
+     */
+    private static double roundTextPosition(final double v) {
+        return Math.round(v * 100) / 100d;
     }
 
     private String replaceMissingCharacters(final String string) {
-        final char[] charArr = string.toCharArray();
-        final char replacementCharacter = Configuration.valueAsChar("xr.renderer.missing-character-replacement", '#');
-
-        // first check to see if the replacement character even exists in the
-        // given font. If not, then do nothing.
-        if (!_font.getFontDescription().getFont().charExists(replacementCharacter)) {
-            XRLog.render(Level.INFO, "Missing replacement character [" + replacementCharacter + ":" + (int) replacementCharacter
-                    + "]. No replacement will occur.");
-            return string;
-        }
-
-        // iterate through each character in the string and make an appropriate
-        // replacement
-        for (int i = 0; i < charArr.length; i++) {
-            if (!(charArr[i] == ' ' || charArr[i] == '\u00a0' || charArr[i] == '\u3000' || _font.getFontDescription().getFont()
-                    .charExists(charArr[i]))) {
-                XRLog.render(Level.INFO, "Missing character [" + charArr[i] + ":" + (int) charArr[i] + "] in string [" + string
-                        + "]. Replacing with '" + replacementCharacter + "'");
-                charArr[i] = replacementCharacter;
+        final FontDescription desc = _font.getFontDescription();
+        char[] charArr = null;
+        for (int i = 0; i < string.length(); i++) {
+            final char c = string.charAt(i);
+            if (!(c == ' ' || c == '\u00a0' || c == '\u3000' || desc.charExists(c))) {
+                countMissingCharacter(desc, c);
+                // only replace if the replacement character exists in the
+                // given font
+                if (desc.charExists(_missingCharacterReplacement)) {
+                    if (charArr == null) {
+                        charArr = string.toCharArray();
+                    }
+                    charArr[i] = _missingCharacterReplacement;
+                }
+            }
+        }
+
+        return charArr == null ? string : String.valueOf(charArr);
+    }
+
+    private void countMissingCharacter(final FontDescription desc, final char c) {
+        Map<Character, int[]> counts = _missingCharacters.get(desc);
+        if (counts == null) {
+            counts = new TreeMap<Character, int[]>();
+            _missingCharacters.put(desc, counts);
+        }
+        final int[] count = counts.get(c);
+        if (count == null) {
+            counts.put(c, new int[] { 1 });
+        } else {
+            count[0]++;
+        }
+    }
+
+    /**
+     * @return how often each character that is missing from a font was met
+     *         in the current document, by font name. Only counted when
+     *         <code>xr.renderer.replace-missing-characters</code> is on.
+     */
+    public Map<String, Map<Character, Integer>> getMissingCharacters() {
+        final Map<String, Map<Character, Integer>> result = new LinkedHashMap<String, Map<Character, Integer>>();
+        for (final Entry<FontDescription, Map<Character, int[]>> entry : _missingCharacters.entrySet()) {
+            final Map<Character, Integer> counts = new TreeMap<Character, Integer>();
+            for (final Entry<Character, int[]> count : entry.getValue().entrySet()) {
+                counts.put(count.getKey(), count.getValue()[0]);
+            }
+            final String name = entry.getKey().getFont().getPostscriptFontName();
+            final Map<Character, Integer> existing = result.get(name);
+            if (existing == null) {
+                result.put(name, counts);
+            } else {
+                for (final Entry<Character, Integer> count : counts.entrySet()) {
+                    final Integer n = existing.get(count.getKey());
+                    existing.put(count.getKey(), n == null ? count.getValue() : n + count.getValue());
+                }
             }
         }
+        return result;
+    }
 
-        return String.valueOf(charArr);
+    private void logMissingCharacters() {
+        for (final Entry<FontDescription, Map<Character, int[]>> entry : _missingCharacters.entrySet()) {
+            final FontDescription desc = entry.getKey();
+            int total = 0;
+            final StringBuilder chars = new StringBuilder();
+            for (final Entry<Character, int[]> count : entry.getValue().entrySet()) {
+                final char c = count.getKey();
+                total += count.getValue()[0];
+                chars.append(" [").append(c).append(':').append((int) c).append("] x").append(count.getValue()[0]);
+            }
+            XRLog.render(Level.INFO, total + " missing characters in font " + desc.getFont().getPostscriptFontName() +
+                    (desc.charExists(_missingCharacterReplacement) ? "" :
+                        " (not replaced, font has no replacement character [" + _missingCharacterReplacement + "])") +
+                    ":" + chars);
+        }
     }
 
     private PdfTextArray makeJustificationArray(final String s, final JustificationInfo info) {
+        final float spaceAdjust = (-info.getSpaceAdjust() / _dotsPerPoint) * 1000 / (_font.getSize2D() / _dotsPerPoint);
+        final float nonSpaceAdjust = (-info.getNonSpaceAdjust() / _dotsPerPoint) * 1000 / (_font.getSize2D() / _dotsPerPoint);
+
+        // Characters between adjustments go into the array as one string,
+        // zero adjustments are left out
         final PdfTextArray array = new PdfTextArray();
         final int len = s.length();
-        for (int i = 0; i < len; i++) {
+        int start = 0;
+        for (int i = 0; i < len - 1; i++) {
             final char c = s.charAt(i);
-            array.add(Character.toString(c));
-            if (i != len - 1) {
-                float offset;
-                if (c == ' ' || c == '\u00a0' || c == '\u3000') {
-                    offset = info.getSpaceAdjust();
-                } else {
-                    offset = info.getNonSpaceAdjust();
-                }
-                array.add((-offset / _dotsPerPoint) * 1000 / (_font.getSize2D() / _dotsPerPoint));
+            final float adjust = (c == ' ' || c == '\u00a0' || c == '\u3000') ? spaceAdjust : nonSpaceAdjust;
+            if (adjust != 0) {
+                array.add(s.substring(start, i + 1));
+                array.add(adjust);
+                start = i + 1;
             }
         }
+        array.add(s.substring(start));
         return array;
     }
 
@@ -599,6 +730,7 @@ public class ITextOutputDevice extends AbstractOutputDevice implements OutputDev
     }
 
     public PdfContentByte getCurrentPage() {
+        endText();
         return _currentPage;
     }
 
@@ -606,6 +738,7 @@ public class ITextOutputDevice extends AbstractOutputDevice implements OutputDev
         final PdfContentByte cb = _currentPage;
         if (s == null)
             return;
+        endText();
 
         if (drawType == STROKE) {
             if (!(_stroke instanceof BasicStroke)) {
@@ -808,6 +941,7 @@ public class ITextOutputDevice extends AbstractOutputDevice implements OutputDev
 
     public void setClip(Shape s) {
         final PdfContentByte cb = _currentPage;
+        endText();
         cb.restoreState();
         cb.saveState();
         if (s != null)
@@ -850,6 +984,7 @@ public class ITextOutputDevice extends AbstractOutputDevice implements OutputDev
             inverse.getMatrix(mx);
 
             try {
+                endText();
                 _currentPage.addImage(image, (float) mx[0], (float) mx[1], (float) mx[2], (float) mx[3], (float) mx[4], (float) mx[5]);
             } catch (final DocumentException e) {
                 throw new XRRuntimeException(e.getMessage(), e);
@@ -886,6 +1021,7 @@ public class ITextOutputDevice extends AbstractOutputDevice implements OutputDev
         mx[0] = image.scaleWidth();
         mx[3] = image.scaleHeight();
 
+        endText();
         _currentPage.restoreState();
         _currentPage.addTemplate(page, (float) mx[0], (float) mx[1], (float) mx[2], (float) mx[3], (float) mx[4], (float) mx[5]);
         _currentPage.saveState();
@@ -906,13 +1042,39 @@ public class ITextOutputDevice extends AbstractOutputDevice implements OutputDev
     }
 
     public void start(final Document doc) {
+        _missingCharacters.clear();
         loadBookmarks(doc);
         loadMetadata(doc);
     }
 
     public void finish(final RenderingContext c, final Box root) {
         writeOutline(c, root);
-        writeNamedDestinations(c);
+        addNamedDestinations(c);
+        writeNamedDestinations();
+        logMissingCharacters();
+    }
+
+    /**
+     * Collects the named destinations of the section that was just written.
+     * A document that is written a section at a time calls this after each
+     * section, as the boxes of a section are gone by the time the document
+     * is finished, and {@link #finishSections()} at the end.
+     */
+    public void finishSection(final RenderingContext c) {
+        addNamedDestinations(c);
+    }
+
+    /**
+     * Finishes a document that was written a section at a time. Bookmarks are
+     * not supported there, as their targets may lie in any section, so no
+     * outline is written.
+     */
+    public void finishSections() {
+        if (_bookmarks.size() > 0) {
+            XRLog.render(Level.WARNING, "Bookmarks are not written to documents created a section at a time");
+        }
+        writeNamedDestinations();
+        logMissingCharacters();
     }
 
     private void writeOutline(final RenderingContext c, final Box root) {
@@ -928,10 +1090,12 @@ public class ITextOutputDevice extends AbstractOutputDevice implements OutputDev
         }
     }
 
-    private void writeNamedDestinations(final RenderingContext c) {
+    private void addNamedDestinations(final RenderingContext c) {
         final Map<String, Box> idMap = getSharedContext().getIdMap();
         if ((idMap != null) && (!idMap.isEmpty())) {
-            final PdfArray dests = new PdfArray();
+            if (_namedDestinations == null) {
+                _namedDestinations = new PdfArray();
+            }
             try {
                 final Iterator<Entry<String, Box>> it = idMap.entrySet().iterator();
                 while (it.hasNext()) {
@@ -941,27 +1105,35 @@ public class ITextOutputDevice extends AbstractOutputDevice implements OutputDev
 
                     if (targetBox.getStyle().isIdent(CSSName.FS_NAMED_DESTINATION, IdentValue.CREATE)) {
                         final String anchorName = (String) entry.getKey();
-                        dests.add(new PdfString(anchorName, PdfString.TEXT_UNICODE));
+                        _namedDestinations.add(new PdfString(anchorName, PdfString.TEXT_UNICODE));
 
                         final PdfDestination dest = createDestination(c, targetBox);
                         if (dest != null) {
                             final PdfIndirectReference ref = _writer.addToBody(dest).getIndirectReference();
-                            dests.add(ref);
+                            _namedDestinations.add(ref);
                         }
                     }
                 }
+            } catch (final IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
 
-                if (!dests.isEmpty()) {
-                    final PdfDictionary nametree = new PdfDictionary();
-                    nametree.put(PdfName.NAMES, dests);
-                    final PdfIndirectReference nameTreeRef = _writer.addToBody(nametree).getIndirectReference();
+    private void writeNamedDestinations() {
+        final PdfArray dests = _namedDestinations;
+        _namedDestinations = null;
+        if ((dests != null) && (!dests.isEmpty())) {
+            try {
+                final PdfDictionary nametree = new PdfDictionary();
+                nametree.put(PdfName.NAMES, dests);
+                final PdfIndirectReference nameTreeRef = _writer.addToBody(nametree).getIndirectReference();
 
-                    final PdfDictionary names = new PdfDictionary();
-                    names.put(PdfName.DESTS, nameTreeRef);
-                    final PdfIndirectReference destinationsRef = _writer.addToBody(names).getIndirectReference();
+                final PdfDictionary names = new PdfDictionary();
+                names.put(PdfName.DESTS, nameTreeRef);
+                final PdfIndirectReference destinationsRef = _writer.addToBody(names).getIndirectReference();
 
-                    _writer.getExtraCatalog().put(PdfName.NAMES, destinationsRef);
-                }
+                _writer.getExtraCatalog().put(PdfName.NAMES, destinationsRef);
             } catch (final IOException e) {
                 throw new RuntimeException(e);
             }
@@ -1342,6 +1514,7 @@ public class ITextOutputDevice extends AbstractOutputDevice implements OutputDev
 		final Color s = new Color(start.getRed(), start.getGreen(), start.getBlue());
 		final Color e = new Color(end.getRed(), end.getGreen(), end.getBlue());
 		final PdfShading shader = PdfShading.simpleAxial(_writer, x, y, x + width, y + height, s, e);
+		endText();
 		_currentPage.setShadingFill(new PdfShadingPattern(shader));
 		_currentPage.paintShading(shader);
 	}
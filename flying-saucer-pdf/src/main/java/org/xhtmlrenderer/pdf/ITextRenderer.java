@@ -30,13 +30,16 @@ import java.io.StringReader;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Pattern;
 
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
 import org.jsoup.nodes.Node;
 import org.xhtmlrenderer.context.StyleReference;
+import org.xhtmlrenderer.css.sheet.Stylesheet;
 import org.xhtmlrenderer.css.style.CalculatedStyle;
 import org.xhtmlrenderer.extend.NamespaceHandler;
 import org.xhtmlrenderer.extend.UserInterface;
@@ -45,11 +48,14 @@ import org.xhtmlrenderer.layout.Layer;
 import org.xhtmlrenderer.layout.LayoutContext;
 import org.xhtmlrenderer.layout.SharedContext;
 import org.xhtmlrenderer.render.BlockBox;
+import org.xhtmlrenderer.render.Box;
 import org.xhtmlrenderer.render.PageBox;
 import org.xhtmlrenderer.render.RenderingContext;
 import org.xhtmlrenderer.render.ViewportBox;
 import org.xhtmlrenderer.resource.HTMLResource;
+import org.xhtmlrenderer.resource.ResourceDiscovery;
 import org.xhtmlrenderer.simple.HtmlNamespaceHandler;
+import org.xhtmlrenderer.swing.NaiveUserAgent;
 import org.xhtmlrenderer.util.Configuration;
 import org.xhtmlrenderer.util.JsoupUtil;
 
@@ -164,7 +170,23 @@ public class ITextRenderer {
         }
         _sharedContext.setBaseURL(url);
         _sharedContext.setNamespaceHandler(nsh);
+
+        NaiveUserAgent prefetcher = null;
+        if (Configuration.isTrue("xr.load.prefetch", false) && _sharedContext.getUac() instanceof NaiveUserAgent) {
+            prefetcher = (NaiveUserAgent) _sharedContext.getUac();
+            prefetcher.clearPrefetchedResources();
+            prefetcher.prefetchStylesheets(ResourceDiscovery.findStylesheets(doc, nsh, _sharedContext.getMedia()));
+            prefetcher.prefetchImages(ResourceDiscovery.findImages(doc, nsh));
+        }
+
         _sharedContext.getCss().setDocumentContext(_sharedContext, _sharedContext.getNamespaceHandler(), doc, new NullUserInterface());
+
+        if (prefetcher != null) {
+            final List<Stylesheet> sheets = _sharedContext.getCss().getParsedStylesheets();
+            prefetcher.prefetch(ResourceDiscovery.findFontFaceSources(sheets));
+            prefetcher.prefetchImages(ResourceDiscovery.findStylesheetImages(sheets, _sharedContext.getMedia()));
+        }
+
         getFontResolver().importFontFaces(_sharedContext.getCss().getFontFaceRules());
     }
 
@@ -191,6 +213,37 @@ public class ITextRenderer {
         return _pdfVersion == null ? '0' : _pdfVersion.charValue();
     }
 
+    /**
+     * Downsamples images to <code>dpi</code> at their laid-out size, so that
+     * large images shown small do not bloat the PDF. 0, the default, embeds
+     * images as they are. Set this before {@link #layout()}; it only applies
+     * to images in img elements, and only with an {@link ITextUserAgent}.
+     *
+     * @see ITextUserAgent#downsampleImage(String, org.xhtmlrenderer.extend.FSImage)
+     */
+    public void setImageResolution(final int dpi) {
+        getUserAgent().setImageResolution(dpi);
+    }
+
+    public int getImageResolution() {
+        return getUserAgent().getImageResolution();
+    }
+
+    /**
+     * Sets the JPEG quality, between 0 and 1, that opaque downsampled images
+     * are encoded at; see {@link #setImageResolution(int)}.
+     */
+    public void setImageQuality(final float quality) {
+        getUserAgent().setImageQuality(quality);
+    }
+
+    private ITextUserAgent getUserAgent() {
+        if (!(_sharedContext.getUac() instanceof ITextUserAgent)) {
+            throw new IllegalStateException("Images can only be downsampled with an ITextUserAgent");
+        }
+        return (ITextUserAgent) _sharedContext.getUac();
+    }
+
     public void layout() {
         final LayoutContext c = newLayoutContext();
         final BlockBox root = BoxBuilder.createRootBox(c, _doc);
@@ -280,14 +333,7 @@ public class ITextRenderer {
                 firstPage.getHeight(c) / _dotsPerPoint);
 
         final com.lowagie.text.Document doc = new com.lowagie.text.Document(firstPageSize, 0, 0, 0, 0);
-        final PdfWriter writer = PdfWriter.getInstance(doc, os);
-        if (_pdfVersion != null) {
-            writer.setPdfVersion(_pdfVersion.charValue());
-        }
-        if (_pdfEncryption != null) {
-            writer.setEncryption(_pdfEncryption.getUserPassword(), _pdfEncryption.getOwnerPassword(),
-                    _pdfEncryption.getAllowedPrivileges(), _pdfEncryption.getEncryptionType());
-        }
+        final PdfWriter writer = createWriter(doc, os);
         _pdfDoc = doc;
         _writer = writer;
 
@@ -302,6 +348,189 @@ public class ITextRenderer {
         }
     }
 
+    /**
+     * Writes the document a section at a time, so that only one section is
+     * ever laid out. The children of <code>body</code> are split into sections
+     * wherever a page break is forced between them, with
+     * <code>page-break-before</code> or <code>page-break-after</code>. Each
+     * section is laid out, painted and dropped before the next one is laid
+     * out, so memory use depends on the size of the largest section rather
+     * than on the size of the document. {@link #layout()} must not be called
+     * first.
+     * <p/>
+     * Page numbers run on across sections, but layout does not look beyond
+     * the current section: <code>counter(pages)</code> counts up to the end
+     * of the current section, other CSS counters start over in every section
+     * and links only work within a section. Named destinations work across
+     * sections, bookmarks are not supported and no outline is written.
+     * Running and fixed position children of <code>body</code> are laid out
+     * with every section they apply to, see
+     * {@link SharedContext#setSection(Element, int, int)}. A document without
+     * forced page breaks is written as by {@link #createPDF(OutputStream)}.
+     * <p/>
+     * <B>NOTE:</B> Caller is responsible for cleaning up the OutputStream if
+     * something goes wrong.
+     */
+    public void createStreamingPDF(final OutputStream os) throws DocumentException {
+        final Element body = _doc.body();
+        final List<Integer> sections = body == null ? null : findSections(body);
+        if (sections == null || sections.size() <= 2) {
+            layout();
+            createPDF(os);
+            return;
+        }
+
+        final com.lowagie.text.Document doc = new com.lowagie.text.Document();
+        int pageCount = 0;
+        try {
+            for (int i = 0; i < sections.size() - 1; i++) {
+                final int start = sections.get(i);
+                final int end = sections.get(i + 1);
+                _sharedContext.setSection(body, start, end);
+                layout();
+
+                final List<PageBox> pages = _root.getLayer().getPages();
+                final RenderingContext c = newRenderingContext();
+
+                // The page break that ends the previous section is already
+                // taken, so pages in front of the first block of a section are
+                // left out
+                int first = 0;
+                if (i > 0) {
+                    final Box box = findBox(_root, (Element) body.childNode(start));
+                    if (box != null) {
+                        first = _root.getLayer().getFirstPage(c, box).getPageNo();
+                    }
+                }
+                c.setInitialPageNo(pageCount + 1 - first);
+
+                final PageBox firstPage = pages.get(first);
+                final com.lowagie.text.Rectangle firstPageSize = new com.lowagie.text.Rectangle(0, 0, firstPage.getWidth(c) / _dotsPerPoint,
+                        firstPage.getHeight(c) / _dotsPerPoint);
+
+                if (i == 0) {
+                    doc.setPageSize(firstPageSize);
+                    doc.setMargins(0, 0, 0, 0);
+                    _writer = createWriter(doc, os);
+                    _pdfDoc = doc;
+
+                    firePreOpen();
+                    doc.open();
+
+                    _outputDevice.start(_doc);
+                    _outputDevice.setWriter(_writer);
+                } else {
+                    _outputDevice.setStartPageNo(_writer.getPageNumber() - first);
+                    doc.setPageSize(firstPageSize);
+                    doc.newPage();
+                }
+
+                _outputDevice.setRoot(_root);
+                _outputDevice.initializePage(_writer.getDirectContent(), firstPageSize.getHeight());
+                _root.getLayer().assignPagePaintingPositions(c, Layer.PAGED_MODE_PRINT);
+                c.setPageCount(pages.size());
+                if (i == 0) {
+                    firePreWrite(pages.size());
+                    setDidValues(doc);
+                }
+                writePages(pages, first, c, doc, _writer);
+
+                _outputDevice.finishSection(c);
+                pageCount += pages.size() - first;
+
+                releaseSection(body, start, end);
+            }
+        } finally {
+            _sharedContext.clearSection();
+        }
+
+        _outputDevice.finishSections();
+        fireOnClose();
+        doc.close();
+    }
+
+    /**
+     * @return the indexes of the child nodes of <code>body</code> that start
+     *         a section, followed by the number of child nodes
+     */
+    private List<Integer> findSections(final Element body) {
+        final List<Integer> result = new ArrayList<Integer>();
+        result.add(0);
+
+        boolean haveContent = false;
+        boolean breakAfter = false;
+        final List<Node> children = body.childNodes();
+        for (int i = 0; i < children.size(); i++) {
+            final Node child = children.get(i);
+            if (! (child instanceof Element)) {
+                continue;
+            }
+            final CalculatedStyle style = _sharedContext.getStyle((Element) child);
+            if (style.isDisplayNone()) {
+                continue;
+            }
+            if (! style.isSpecifiedAsBlock() || style.isPostionedOrFloated() || style.isRunning()) {
+                // Only in-flow blocks can force a page break
+                haveContent = true;
+                breakAfter = false;
+                continue;
+            }
+            if (haveContent && (breakAfter || style.isForcePageBreakBefore())) {
+                result.add(i);
+            }
+            haveContent = true;
+            breakAfter = style.isForcePageBreakAfter();
+        }
+
+        result.add(children.size());
+        return result;
+    }
+
+    private static Box findBox(final Box box, final Element element) {
+        if (box.getElement() == element) {
+            return box;
+        }
+        for (int i = 0; i < box.getChildCount(); i++) {
+            final Box result = findBox(box.getChild(i), element);
+            if (result != null) {
+                return result;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Drops the boxes of a section that has been written, along with what
+     * the shared context remembers about its elements.
+     */
+    private void releaseSection(final Element body, final int start, final int end) {
+        _root = null;
+        _outputDevice.setRoot(null);
+
+        final Map<String, Box> idMap = _sharedContext.getIdMap();
+        if (idMap != null) {
+            idMap.clear();
+        }
+        for (int i = start; i < end; i++) {
+            final Node child = body.childNode(i);
+            if (child instanceof Element) {
+                _sharedContext.removeElementReferences((Element) child);
+            }
+        }
+    }
+
+    private PdfWriter createWriter(final com.lowagie.text.Document doc, final OutputStream os) throws DocumentException {
+        final PdfWriter writer = PdfWriter.getInstance(doc, os);
+        if (_pdfVersion != null) {
+            writer.setPdfVersion(_pdfVersion.charValue());
+        }
+        if (_pdfEncryption != null) {
+            writer.setEncryption(_pdfEncryption.getUserPassword(), _pdfEncryption.getOwnerPassword(),
+                    _pdfEncryption.getAllowedPrivileges(), _pdfEncryption.getEncryptionType());
+        }
+        return writer;
+    }
+
     private void firePreOpen() {
         if (_listener != null) {
             _listener.preOpen(this);
@@ -334,7 +563,15 @@ public class ITextRenderer {
         c.setPageCount(pageCount);
         firePreWrite(pageCount); // opportunity to adjust meta data
         setDidValues(doc); // set PDF header fields from meta data
-        for (int i = 0; i < pageCount; i++) {
+        writePages(pages, 0, c, doc, writer);
+
+        _outputDevice.finish(c, _root);
+    }
+
+    private void writePages(final List<PageBox> pages, final int first, final RenderingContext c,
+            final com.lowagie.text.Document doc, final PdfWriter writer) throws DocumentException {
+        final int pageCount = pages.size();
+        for (int i = first; i < pageCount; i++) {
             final PageBox currentPage = pages.get(i);
             c.setPage(i, currentPage);
             paintPage(c, writer, currentPage);
@@ -348,8 +585,6 @@ public class ITextRenderer {
                 _outputDevice.initializePage(writer.getDirectContent(), nextPageSize.getHeight());
             }
         }
-
-        _outputDevice.finish(c, _root);
     }
 
     // Sets the document information dictionary values from html metadata
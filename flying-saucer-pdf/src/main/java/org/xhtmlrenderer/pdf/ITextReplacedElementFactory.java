@@ -58,11 +58,14 @@ public class ITextReplacedElementFactory implements ReplacedElementFactory {
         if (nodeName.equals("img")) {
             final String srcAttr = e.attr("src");
             if (srcAttr != null && srcAttr.length() > 0) {
-                final FSImage fsImage = uac.getImageResource(srcAttr).getImage();
+                FSImage fsImage = uac.getImageResource(srcAttr).getImage();
                 if (fsImage != null) {
                     if (cssWidth != -1 || cssHeight != -1) {
                         fsImage.scale(cssWidth, cssHeight);
                     }
+                    if (uac instanceof ITextUserAgent) {
+                        fsImage = ((ITextUserAgent) uac).downsampleImage(srcAttr, fsImage);
+                    }
                     return new ITextImageElement(fsImage);
                 }                    
             }
@@ -24,6 +24,7 @@ import java.awt.Rectangle;
 import org.xhtmlrenderer.extend.FSGlyphVector;
 import org.xhtmlrenderer.extend.FontContext;
 import org.xhtmlrenderer.extend.OutputDevice;
+import org.xhtmlrenderer.extend.TextMeasurer;
 import org.xhtmlrenderer.extend.TextRenderer;
 import org.xhtmlrenderer.pdf.ITextFontResolver.FontDescription;
 import org.xhtmlrenderer.render.FSFont;
@@ -32,7 +33,7 @@ import org.xhtmlrenderer.render.JustificationInfo;
 
 import com.lowagie.text.pdf.BaseFont;
 
-public class ITextTextRenderer implements TextRenderer {
+public class ITextTextRenderer implements TextRenderer, TextMeasurer {
     private static float TEXT_MEASURING_DELTA = 0.01f;
     
     public void setup(final FontContext context) {
@@ -48,29 +49,38 @@ public class ITextTextRenderer implements TextRenderer {
     }
 
     public FSFontMetrics getFSFontMetrics(final FontContext context, final FSFont font, final String string) {
+        return ((ITextFSFont)font).getFSFontMetrics();
+    }
+
+    public int getWidth(final FontContext context, final FSFont font, final String string) {
+        return getWidth(context, font, string, 0, string.length());
+    }
+
+    public int getWidth(final FontContext context, final FSFont font, final CharSequence text, final int start, final int end) {
         final FontDescription descr = ((ITextFSFont)font).getFontDescription();
-        final BaseFont bf = descr.getFont();
-        final float size = font.getSize2D();
-        final ITextFSFontMetrics result = new ITextFSFontMetrics();
-        result.setAscent(bf.getFontDescriptor(BaseFont.BBOXURY, size));
-        result.setDescent(-bf.getFontDescriptor(BaseFont.BBOXLLY, size));
-        
-        result.setStrikethroughOffset(-descr.getYStrikeoutPosition() / 1000f * size);
-        if (descr.getYStrikeoutSize() != 0) {
-            result.setStrikethroughThickness(descr.getYStrikeoutSize() / 1000f * size);
-        } else {
-            result.setStrikethroughThickness(size / 12.0f);
+        int total = 0;
+        for (int i = start; i < end; i++) {
+            final char c = text.charAt(i);
+            if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(text.charAt(i + 1))) {
+                total += descr.getWidth(c, text.charAt(++i));
+            } else {
+                total += descr.getWidth(c);
+            }
         }
-        
-        result.setUnderlineOffset(-descr.getUnderlinePosition() / 1000f * size);
-        result.setUnderlineThickness(descr.getUnderlineThickness() / 1000f * size);
-        
-        return result;
+        return toWidth(total, font.getSize2D());
     }
 
-    public int getWidth(final FontContext context, final FSFont font, final String string) {
-        final BaseFont bf = ((ITextFSFont)font).getFontDescription().getFont();
-        final float result = bf.getWidthPoint(string, font.getSize2D());
+    public PrefixWidths getPrefixWidths(final FontContext context, final FSFont font, final CharSequence text, final int start) {
+        return new ITextPrefixWidths(((ITextFSFont)font).getFontDescription(), font.getSize2D(), text, start);
+    }
+
+    /**
+     * Converts a sum of advances in 1/1000 em to a width the way
+     * {@link BaseFont#getWidthPoint(String, float)} does, rounding up unless
+     * the width is within {@link #TEXT_MEASURING_DELTA} of a whole number.
+     */
+    private static int toWidth(final int advances, final float size) {
+        final float result = advances * 0.001f * size;
         if (result - Math.floor(result) < TEXT_MEASURING_DELTA) {
             return (int)result;
         } else {
@@ -78,6 +88,54 @@ public class ITextTextRenderer implements TextRenderer {
         }
     }
 
+    /**
+     * Running sums of the advances of a text, extended as far as the longest
+     * prefix asked for so far. A surrogate pair is counted as a pair once
+     * both halves are in the prefix, just as when measuring the prefix on
+     * its own.
+     */
+    private static final class ITextPrefixWidths implements PrefixWidths {
+        private final FontDescription _descr;
+        private final float _size;
+        private final CharSequence _text;
+        private final int _start;
+
+        private int[] _sums = new int[16];
+        private int _measured;
+
+        private ITextPrefixWidths(final FontDescription descr, final float size, final CharSequence text, final int start) {
+            _descr = descr;
+            _size = size;
+            _text = text;
+            _start = start;
+        }
+
+        public int getWidth(final int end) {
+            final int count = end - _start;
+            if (count > _measured) {
+                measure(count);
+            }
+            return toWidth(_sums[count], _size);
+        }
+
+        private void measure(final int count) {
+            if (count >= _sums.length) {
+                final int[] sums = new int[Math.max(count + 1, _sums.length * 2)];
+                System.arraycopy(_sums, 0, sums, 0, _measured + 1);
+                _sums = sums;
+            }
+            for (int i = _measured; i < count; i++) {
+                final char c = _text.charAt(_start + i);
+                if (i > 0 && Character.isLowSurrogate(c) && Character.isHighSurrogate(_text.charAt(_start + i - 1))) {
+                    _sums[i + 1] = _sums[i - 1] + _descr.getWidth(_text.charAt(_start + i - 1), c);
+                } else {
+                    _sums[i + 1] = _sums[i] + _descr.getWidth(c);
+                }
+            }
+            _measured = count;
+        }
+    }
+
     public void setFontScale(final float scale) {
     }
 
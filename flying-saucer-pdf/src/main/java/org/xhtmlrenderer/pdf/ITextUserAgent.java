@@ -23,12 +23,19 @@ package org.xhtmlrenderer.pdf;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 
 import org.xhtmlrenderer.extend.FSImage;
 import org.xhtmlrenderer.layout.SharedContext;
 import org.xhtmlrenderer.resource.ImageResource;
+import org.xhtmlrenderer.swing.ImageCache;
 import org.xhtmlrenderer.swing.NaiveUserAgent;
+import org.xhtmlrenderer.util.Configuration;
+import org.xhtmlrenderer.util.ConcurrentLruCache;
 import org.xhtmlrenderer.util.XRLog;
 
 import com.lowagie.text.Image;
@@ -37,17 +44,85 @@ import com.lowagie.text.pdf.PdfReader;
 import org.xhtmlrenderer.util.ImageUtil;
 
 public class ITextUserAgent extends NaiveUserAgent {
-    private static final int IMAGE_CACHE_CAPACITY = 32;
+    /**
+     * Rough size in bytes of a cached image besides its data
+     */
+    private static final int IMAGE_SIZE = 512;
+
+    private static final ConcurrentLruCache.Weigher<String, ImageResource> IMAGE_WEIGHER =
+            new ConcurrentLruCache.Weigher<String, ImageResource>() {
+        public long weigh(final String key, final ImageResource value) {
+            if (value.getImage() instanceof ITextFSImage) {
+                final Image image = ((ITextFSImage) value.getImage()).getImage();
+                long size = IMAGE_SIZE;
+                if (image.getRawData() != null) {
+                    size += image.getRawData().length;
+                } else {
+                    size += 4L * (long) image.getWidth() * (long) image.getHeight();
+                }
+                // The file the image was read from, unless it is the raw data, as for JPEGs
+                if (image.getOriginalData() != null && image.getOriginalData() != image.getRawData()) {
+                    size += image.getOriginalData().length;
+                }
+                return size;
+            }
+            return IMAGE_SIZE;
+        }
+    };
+
+    private static final ImageCache _sharedImageCache = new ImageCache(IMAGE_WEIGHER);
 
     private SharedContext _sharedContext;
 
     private final ITextOutputDevice _outputDevice;
 
+    private int _imageResolution = Configuration.valueAsInt("xr.pdf.images.resolution", 0);
+
+    private float _imageQuality = Configuration.valueAsFloat("xr.pdf.images.quality", 0.85f);
+
     public ITextUserAgent(final ITextOutputDevice outputDevice) {
-        super(IMAGE_CACHE_CAPACITY);
+        setImageCache(new ImageCache(IMAGE_WEIGHER));
         _outputDevice = outputDevice;
     }
 
+    /**
+     * @return the resolution in dots per inch that images are downsampled to
+     *         at their laid-out size, or 0 if they are embedded as they are
+     */
+    public int getImageResolution() {
+        return _imageResolution;
+    }
+
+    /**
+     * Sets the resolution in dots per inch that images are downsampled to at
+     * their laid-out size, see {@link #downsampleImage(String, FSImage)}. 0,
+     * the default, embeds images as they are.
+     */
+    public void setImageResolution(final int imageResolution) {
+        _imageResolution = imageResolution;
+    }
+
+    /**
+     * @return the JPEG quality, between 0 and 1, that opaque downsampled
+     *         images are encoded at
+     */
+    public float getImageQuality() {
+        return _imageQuality;
+    }
+
+    public void setImageQuality(final float imageQuality) {
+        _imageQuality = imageQuality;
+    }
+
+    /**
+     * @return a cache of PDF images shared by all ITextUserAgents that choose
+     *         to use it, see {@link #setImageCache(ImageCache)}. The images of
+     *         an ImageCache from a Swing user agent cannot be used for PDF.
+     */
+    public static ImageCache getSharedImageCache() {
+        return _sharedImageCache;
+    }
+
     private byte[] readStream(final InputStream is) throws IOException {
         final ByteArrayOutputStream out = new ByteArrayOutputStream(is.available());
         final byte[] buf = new byte[10240];
@@ -65,63 +140,175 @@ public class ITextUserAgent extends NaiveUserAgent {
             resource = loadEmbeddedBase64ImageResource(uri);
         } else {
             uri = resolveURI(uri);
-            resource = _imageCache.get(uri);
+            final URL pdf = getPDFURL(uri);
+            if (pdf != null) {
+                resource = loadPDFAsImageResource(uri, pdf);
+            } else {
+                resource = getImageCache().getImage(uri, getValidator(uri), _imageLoader);
+                if (resource != null) {
+                    // Cached images are shared, so size a wrapper for this use
+                    final Image image = ((ITextFSImage) resource.getImage()).getImage();
+                    resource = new ImageResource(resource.getImageUri(), scaleToOutputResolution(image));
+                }
+            }
+
             if (resource == null) {
-                final InputStream is = resolveAndOpenStream(uri);
-                if (is != null) {
-                    try {
-                        final URL url = new URL(uri);
-                        if (url.getPath() != null && url.getPath().toLowerCase().endsWith(".pdf")) {
-                            final PdfReader reader = _outputDevice.getReader(url);
-                            final PDFAsImage image = new PDFAsImage(url);
-                            final Rectangle rect = reader.getPageSizeWithRotation(1);
-                            image.setInitialWidth(rect.getWidth() * _outputDevice.getDotsPerPoint());
-                            image.setInitialHeight(rect.getHeight() * _outputDevice.getDotsPerPoint());
-                            resource = new ImageResource(uri, image);
-                        } else {
-                            final Image image = Image.getInstance(readStream(is));
-                            scaleToOutputResolution(image);
-                            resource = new ImageResource(uri, new ITextFSImage(image));
-                        }
-                        _imageCache.put(uri, resource);
-                    } catch (final Exception e) {
-                        XRLog.exception("Can't read image file; unexpected problem for URI '" + uri + "'", e);
-                    } finally {
+                resource = new ImageResource(uri, null);
+            }
+        }
+        return resource;
+    }
+
+    /**
+     * Downsamples an image that has more pixels than its laid-out size needs
+     * at the {@link #getImageResolution() image resolution}, so that the PDF
+     * embeds fewer. The file the image was read from, which iText keeps as
+     * its original data, is decoded again and re-encoded, see
+     * {@link ImageUtil#downsampleImage(byte[], int, int, float)}, so the
+     * image is not fetched a second time. An image without original data is
+     * embedded as it is. The result is cached by its size, so an image laid
+     * out at the same size again shares it.
+     *
+     * @param uri the URI <code>image</code> was loaded from
+     * @param image the image, already scaled to its laid-out size
+     * @return the downsampled image, or <code>image</code> if it is small
+     *         enough already, or cannot be downsampled
+     */
+    public FSImage downsampleImage(final String uri, final FSImage image) {
+        if (_imageResolution <= 0 || !(image instanceof ITextFSImage)) {
+            return image;
+        }
+
+        final ITextFSImage fsImage = (ITextFSImage) image;
+        final Image source = fsImage.getImage();
+        final float pixelsPerDot = _imageResolution / (72f * _outputDevice.getDotsPerPoint());
+        final int width = (int) Math.ceil(fsImage.getWidth() * pixelsPerDot);
+        final int height = (int) Math.ceil(fsImage.getHeight() * pixelsPerDot);
+        if (width <= 0 || height <= 0 || (width >= source.getWidth() && height >= source.getHeight())) {
+            return image;
+        }
+
+        final boolean embedded = ImageUtil.isEmbeddedBase64Image(uri);
+        final String resolved = embedded ? ImageUtil.getEmbeddedImageKey(uri) : resolveURI(uri);
+        final ImageCache cache = embedded ? _sharedImageCache : getImageCache();
+        final String key = "downsampled:" + width + "x" + height + ":" + resolved;
+        final ImageResource resource = cache.getImage(key, embedded ? null : getValidator(resolved),
+                new ImageCache.Loader() {
+            public ImageResource load(final String key) {
+                final byte[] data = source.getOriginalData() != null ? source.getOriginalData() :
+                        source.isJpeg() ? source.getRawData() : null;
+                Image result = source;
+                if (data != null) {
+                    final byte[] downsampled = ImageUtil.downsampleImage(data, width, height, _imageQuality);
+                    if (downsampled != null) {
                         try {
-                            is.close();
-                        } catch (final IOException e) {
-                            // ignore
+                            result = Image.getInstance(downsampled);
+                        } catch (final Exception e) {
+                            XRLog.exception("Can't read downsampled image for URI '" + resolved + "'", e);
                         }
                     }
                 }
+                // Cached even if it is the source image, so it is tried only once
+                return new ImageResource(resolved, new ITextFSImage(result));
             }
+        });
+        return fsImage.withImage(((ITextFSImage) resource.getImage()).getImage());
+    }
 
-            if (resource != null) {
-                resource = new ImageResource(resource.getImageUri(), (FSImage) ((ITextFSImage) resource.getImage()).clone());
-            } else {
-                resource = new ImageResource(uri, null);
+    private URL getPDFURL(final String uri) {
+        try {
+            final URL url = new URL(uri);
+            if (url.getPath() != null && url.getPath().toLowerCase().endsWith(".pdf")) {
+                return url;
+            }
+        } catch (final MalformedURLException e) {
+            // not a PDF we can read
+        }
+        return null;
+    }
+
+    private ImageResource loadPDFAsImageResource(final String uri, final URL url) {
+        try {
+            final PdfReader reader = _outputDevice.getReader(url);
+            final PDFAsImage image = new PDFAsImage(url);
+            final Rectangle rect = reader.getPageSizeWithRotation(1);
+            image.setInitialWidth(rect.getWidth() * _outputDevice.getDotsPerPoint());
+            image.setInitialHeight(rect.getHeight() * _outputDevice.getDotsPerPoint());
+            return new ImageResource(uri, image);
+        } catch (final Exception e) {
+            XRLog.exception("Can't read image file; unexpected problem for URI '" + uri + "'", e);
+        }
+        return null;
+    }
+
+    /**
+     * PDFs are not cached, so they are not prefetched either.
+     */
+    @Override
+    public void prefetchImages(final Collection<String> uris) {
+        final List<String> images = new ArrayList<String>(uris.size());
+        for (final String uri : uris) {
+            if (getPDFURL(resolveURI(uri)) == null) {
+                images.add(uri);
+            }
+        }
+        super.prefetchImages(images);
+    }
+
+    /**
+     * Reads the image at a resolved URI for the image cache, at its own size.
+     */
+    @Override
+    protected ImageResource loadImageResource(final String uri) {
+        ImageResource resource = null;
+        final InputStream is = resolveAndOpenStream(uri);
+        if (is != null) {
+            try {
+                final Image image = Image.getInstance(readStream(is));
+                resource = new ImageResource(uri, new ITextFSImage(image));
+            } catch (final Exception e) {
+                XRLog.exception("Can't read image file; unexpected problem for URI '" + uri + "'", e);
+            } finally {
+                try {
+                    is.close();
+                } catch (final IOException e) {
+                    // ignore
+                }
             }
         }
         return resource;
     }
     
+    /**
+     * Embedded images are decoded once per process: they are kept in the
+     * {@link #getSharedImageCache() shared image cache}, keyed by their
+     * content.
+     */
     private ImageResource loadEmbeddedBase64ImageResource(final String uri) {
-        try {
-            final byte[] buffer = ImageUtil.getEmbeddedBase64Image(uri);
-            final Image image = Image.getInstance(buffer);
-            scaleToOutputResolution(image);
-            return new ImageResource(null, new ITextFSImage(image));
-        } catch (final Exception e) {
-            XRLog.exception("Can't read XHTML embedded image.", e);
+        final ImageResource resource = _sharedImageCache.getImage(ImageUtil.getEmbeddedImageKey(uri), null,
+                new ImageCache.Loader() {
+            public ImageResource load(final String key) {
+                try {
+                    final byte[] buffer = ImageUtil.getEmbeddedBase64Image(uri);
+                    if (buffer != null) {
+                        return new ImageResource(null, new ITextFSImage(Image.getInstance(buffer)));
+                    }
+                } catch (final Exception e) {
+                    XRLog.exception("Can't read XHTML embedded image.", e);
+                }
+                return null;
+            }
+        });
+        if (resource == null) {
+            return new ImageResource(null, null);
         }
-        return new ImageResource(null, null);
+        final Image image = ((ITextFSImage) resource.getImage()).getImage();
+        return new ImageResource(null, scaleToOutputResolution(image));
     }
 
-    private void scaleToOutputResolution(final Image image) {
+    private ITextFSImage scaleToOutputResolution(final Image image) {
         final float factor = _sharedContext.getDotsPerPixel();
-        if (factor != 1.0f) {
-            image.scaleAbsolute(image.getPlainWidth() * factor, image.getPlainHeight() * factor);
-        }
+        return new ITextFSImage(image, image.getPlainWidth() * factor, image.getPlainHeight() * factor);
     }
 
     public SharedContext getSharedContext() {
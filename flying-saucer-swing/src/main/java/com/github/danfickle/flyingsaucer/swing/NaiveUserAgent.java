@@ -28,8 +28,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
 import javax.imageio.ImageIO;
 
 import org.xhtmlrenderer.event.DocumentListener;
@@ -38,7 +36,9 @@ import org.xhtmlrenderer.resource.CSSResource;
 import org.xhtmlrenderer.resource.ImageResource;
 import org.xhtmlrenderer.resource.HTMLResource;
 import org.xhtmlrenderer.swing.AWTFSImage;
+import org.xhtmlrenderer.swing.ImageCache;
 import org.xhtmlrenderer.swing.StylesheetCache;
+import org.xhtmlrenderer.util.IOUtil;
 import org.xhtmlrenderer.util.ImageUtil;
 import org.xhtmlrenderer.util.XRLog;
 
@@ -47,37 +47,30 @@ import org.xhtmlrenderer.util.XRLog;
  * XML, CSS or images are loaded, and reports visited links without any filtering. The most straightforward process
  * available in the JDK is used to load the resources in question--either using java.io or java.net classes.
  *
- * <p>The NaiveUserAgent has a small cache for images,
- * the size of which (number of images) can be passed as a constructor argument. There is no automatic cleaning of
- * the cache; call {@link #shrinkImageCache()} to remove the least-accessed elements--for example, you might do this
- * when a new document is about to be loaded. The NaiveUserAgent is also a DocumentListener; if registered with a
- * source of document events (like the panel hierarchy), it will respond to the
- * {@link org.xhtmlrenderer.event.DocumentListener#documentStarted()} call and attempt to shrink its cache.
+ * <p>The NaiveUserAgent has a cache for images, an {@link ImageCache} bounded by the estimated size of the
+ * decoded images (<code>xr.cache.images.max-size</code>), or by a number of images passed as a constructor
+ * argument. The least recently used images are evicted once the cache is full. To share decoded images between
+ * user agents, e.g. on different threads, plug in {@link ImageCache#getSharedInstance()} with
+ * {@link #setImageCache(ImageCache)}.
  *
  * <p>This class is meant as a starting point--it will work out of the box, but you should really implement your
  * own, tuned to your application's needs.
  *
  * @author Torbjoern Gannholm
  */
-public class NaiveUserAgent implements UserAgentCallback, DocumentListener {
+public class NaiveUserAgent implements UserAgentCallback, DocumentListener, StylesheetCache.Validator {
 
-    private static final int DEFAULT_IMAGE_CACHE_SIZE = 16;
-
-    /**
-     * a (simple) LRU cache
-     */
-    protected LinkedHashMap<String, ImageResource> _imageCache;
+    private ImageCache _imageCache;
 
     protected StylesheetCache _styleCache = new StylesheetCache();
-    
-    private final int _imageCacheCapacity;
+
     private String _baseURL;
 
     /**
-     * Creates a new instance of NaiveUserAgent with a max image cache of 16 images.
+     * Creates a new instance of NaiveUserAgent with an image cache bounded by the estimated size of its images.
      */
     public NaiveUserAgent() {
-        this(DEFAULT_IMAGE_CACHE_SIZE);
+        this._imageCache = new ImageCache();
     }
 
     /**
@@ -86,24 +79,16 @@ public class NaiveUserAgent implements UserAgentCallback, DocumentListener {
      * @param imgCacheSize Number of images to hold in cache before LRU images are released.
      */
     public NaiveUserAgent(final int imgCacheSize) {
-        this._imageCacheCapacity = imgCacheSize;
-
-        // note we do *not* override removeEldestEntry() here--users of this class must call shrinkImageCache().
-        // that's because we don't know when is a good time to flush the cache
-        this._imageCache = new java.util.LinkedHashMap<String, ImageResource>(_imageCacheCapacity, 0.75f, true);
+        this._imageCache = new ImageCache(imgCacheSize, null);
     }
 
     /**
-     * If the image cache has more items than the limit specified for this class, the least-recently used will
-     * be dropped from cache until it reaches the desired size.
+     * Does nothing; the image cache drops the least-recently used images by itself when it is full.
+     *
+     * @deprecated the image cache bounds itself, there is no need to shrink it
      */
+    @Deprecated
     public void shrinkImageCache() {
-        int ovr = _imageCache.size() - _imageCacheCapacity;
-        final Iterator<String> it = _imageCache.keySet().iterator();
-        while (it.hasNext() && ovr-- > 0) {
-            it.next();
-            it.remove();
-        }
     }
 
     /**
@@ -113,6 +98,18 @@ public class NaiveUserAgent implements UserAgentCallback, DocumentListener {
         _imageCache.clear();
     }
 
+    public ImageCache getImageCache() {
+        return _imageCache;
+    }
+
+    /**
+     * Replaces the image cache, e.g. with {@link ImageCache#getSharedInstance()} to share decoded images with
+     * other user agents.
+     */
+    public void setImageCache(final ImageCache imageCache) {
+        _imageCache = imageCache;
+    }
+
     /**
      * Gets a Reader for the resource identified
      *
@@ -151,6 +148,9 @@ public class NaiveUserAgent implements UserAgentCallback, DocumentListener {
      * Retrieves the image located at the given URI. It's assumed the URI does point to an image--the URI will
      * be accessed (using java.io or java.net), opened, read and then passed into the JDK image-parsing routines.
      * The result is packed up into an ImageResource for later consumption.
+     * <p/>
+     * The images in the image cache are never changed, as the cache may be shared with other user agents; each
+     * call returns a new ImageResource whose image can be scaled without affecting the cached one.
      *
      * @param uri Location of the image source.
      * @return An ImageResource containing the image.
@@ -162,33 +162,46 @@ public class NaiveUserAgent implements UserAgentCallback, DocumentListener {
             ir = createImageResource(null, image);
         } else {
             uri = resolveURI(uri);
-            ir = _imageCache.get(uri);
-            //TODO: check that cached image is still valid
-            if (ir == null) {
-                final InputStream is = resolveAndOpenStream(uri);
-                if (is != null) {
-                    try {
-                        final BufferedImage img = ImageIO.read(is);
-                        if (img == null) {
-                            throw new IOException("ImageIO.read() returned null");
-                        }
-                        ir = createImageResource(uri, img);
-                        _imageCache.put(uri, ir);
-                    } catch (final FileNotFoundException e) {
-                        XRLog.exception("Can't read image file; image at URI '" + uri + "' not found");
-                    } catch (final IOException e) {
-                        XRLog.exception("Can't read image file; unexpected problem for URI '" + uri + "'", e);
-                    } finally {
-                        try {
-                            is.close();
-                        } catch (final IOException e) {
-                            // ignore
-                        }
-                    }
+            ir = _imageCache.getImage(uri, getValidator(uri), new ImageCache.Loader() {
+                @Override
+                public ImageResource load(final String uri) {
+                    return loadImageResource(uri);
                 }
-            }
+            });
             if (ir == null) {
                 ir = createImageResource(uri, null);
+            } else {
+                ir = new ImageResource(ir.getImageUri(), AWTFSImage.createSharedImage(ir.getImage()));
+            }
+        }
+        return ir;
+    }
+
+    /**
+     * Reads and decodes the image at a resolved URI, for the image cache.
+     *
+     * @return An ImageResource containing the image, or null if it could not be read.
+     */
+    private ImageResource loadImageResource(final String uri) {
+        ImageResource ir = null;
+        final InputStream is = resolveAndOpenStream(uri);
+        if (is != null) {
+            try {
+                final BufferedImage img = ImageIO.read(is);
+                if (img == null) {
+                    throw new IOException("ImageIO.read() returned null");
+                }
+                ir = createImageResource(uri, img);
+            } catch (final FileNotFoundException e) {
+                XRLog.exception("Can't read image file; image at URI '" + uri + "' not found");
+            } catch (final IOException e) {
+                XRLog.exception("Can't read image file; unexpected problem for URI '" + uri + "'", e);
+            } finally {
+                try {
+                    is.close();
+                } catch (final IOException e) {
+                    // ignore
+                }
             }
         }
         return ir;
@@ -327,9 +340,7 @@ public class NaiveUserAgent implements UserAgentCallback, DocumentListener {
     }
 
     @Override
-    public void documentStarted() {
-        shrinkImageCache();
-    }
+    public void documentStarted() { /* ignore*/ }
 
     @Override
     public void documentLoaded() { /* ignore*/ }
@@ -344,4 +355,22 @@ public class NaiveUserAgent implements UserAgentCallback, DocumentListener {
 	public StylesheetCache getStylesheetCache() {
 		return _styleCache;
 	}
+
+    /**
+     * Uses the last modified time and length of local stylesheets to tell
+     * whether a cached stylesheet is still current.
+     */
+    @Override
+    public String getValidator(final String uri) {
+        return IOUtil.getFileValidator(uri);
+    }
+
+    /**
+     * Replaces the stylesheet cache, e.g. with
+     * {@link StylesheetCache#getSharedInstance()} to share parsed stylesheets
+     * with other user agents.
+     */
+    public void setStylesheetCache(final StylesheetCache styleCache) {
+        _styleCache = styleCache;
+    }
 }